@@ -132,9 +132,9 @@ class BankAccount {
     public void deposit(double amount) {
         if (amount > 0) {
             balance += amount;
-            System.out.println("Successfully deposited: $" + amount);
+            RingLog.log("Successfully deposited: ${}", amount);
         } else {
-            System.out.println("Deposit amount must be positive.");
+            RingLog.log("Deposit amount must be positive.");
         }
     }
 
@@ -142,11 +142,11 @@ class BankAccount {
     public void withdraw(double amount) {
         if (amount > 0 && amount <= balance) {
             balance -= amount;
-            System.out.println("Successfully withdrew: $" + amount);
+            RingLog.log("Successfully withdrew: ${}", amount);
         } else if (amount > balance) {
-            System.out.println("Insufficient balance.");
+            RingLog.log("Insufficient balance.");
         } else {
-            System.out.println("Withdrawal amount must be positive.");
+            RingLog.log("Withdrawal amount must be positive.");
         }
     }
 }
@@ -179,6 +179,8 @@ public class EncapsulationDemo {
 }
 
 Output
+
+(deposit() and withdraw() report through RingLog from ringlog.java, which is off by default; the "Successfully ...", "Deposit amount ..." and "Insufficient ..." lines appear when the program runs with -Dringlog=sync or -Dringlog=async.)
   
 Account Holder: Jane Smith
 Current Balance: $1000.0
@@ -0,0 +1,325 @@
+/* Many bank accounts in one store, with transfers between them.
+
+   Keeping millions of BankAccount objects (Encapsulation.java) in one
+   synchronized map means every deposit, withdrawal and transfer, on any
+   account, waits for the same lock. AccountStore uses lock striping instead:
+   there is a fixed array of locks (the stripes), and an account is guarded by
+   the stripe its id hashes to. Work on accounts of different stripes runs in
+   parallel; only accounts that happen to share a stripe wait for each other.
+   The map itself is a ConcurrentHashMap, which is safe to read without locks.
+
+   A transfer needs the locks of both accounts. If one thread transferred
+   A -> B (locking A, then B) while another transferred B -> A (locking B,
+   then A), each could end up holding one lock and waiting forever for the
+   other: a deadlock. So the two stripes are always locked in the same global
+   order, lower stripe number first, whichever way the money goes. With one
+   order for everybody no thread can wait for a lock held by a thread that is
+   waiting for one of its own. totalCents needs every stripe at once, so it
+   locks them all in that same order, in a loop, and unlocks them in reverse.
+   The stripe count is limited to MAX_STRIPES (65536).
+
+   Each stripe is its own small lock object (Stripe), padded so that the lock
+   words of two stripes never share a cache line: otherwise threads working
+   on different stripes would still fight over the same line. A ReentrantLock
+   cannot be padded that way, because it keeps its state in a separate
+   object, so Stripe is a plain mutex built on AbstractQueuedSynchronizer.
+   It is not reentrant; a transfer between two accounts of the same stripe
+   locks that stripe once.
+
+   deposit, withdraw and transfer keep the rules and RingLog messages of
+   BankAccount, and return whether they worked. Balances are whole cents.
+
+   Compile together with concurrentaccount.java, ringlog.java and microbench.java. */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+class AccountStore {
+    static final int DEFAULT_STRIPES = 1024;
+    static final int MAX_STRIPES = 1 << 16;
+
+    // The fields of an account; guarded by the lock of its stripe
+    static final class Account {
+        final long id;
+        String holderName;
+        long balanceCents;
+
+        Account(long id, String holderName, long balanceCents) {
+            this.id = id;
+            this.holderName = holderName;
+            this.balanceCents = balanceCents;
+        }
+    }
+
+    // The lock of one stripe: state 1 while held. The fields after those of
+    // AbstractQueuedSynchronizer keep the next stripe off this cache line.
+    @SuppressWarnings({"unused", "serial"})
+    static final class Stripe extends AbstractQueuedSynchronizer {
+        long p1, p2, p3, p4, p5, p6, p7, p8;
+
+        void lock() {
+            acquire(1);
+        }
+
+        void unlock() {
+            release(1);
+        }
+
+        @Override
+        protected boolean tryAcquire(int ignored) {
+            return compareAndSetState(0, 1);
+        }
+
+        @Override
+        protected boolean tryRelease(int ignored) {
+            setState(0);
+            return true;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Account> accounts = new ConcurrentHashMap<>();
+    private final Stripe[] stripes;
+    private final int mask;
+
+    AccountStore() {
+        this(DEFAULT_STRIPES);
+    }
+
+    // The number of stripes is rounded up to a power of two; 1 means one lock for everything
+    AccountStore(int stripeCount) {
+        if (stripeCount <= 0 || stripeCount > MAX_STRIPES) {
+            throw new IllegalArgumentException("Stripes must be between 1 and " + MAX_STRIPES + ": " + stripeCount);
+        }
+        int size = Integer.highestOneBit(stripeCount * 2 - 1);
+        stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+        mask = size - 1;
+    }
+
+    int stripes() {
+        return stripes.length;
+    }
+
+    int size() {
+        return accounts.size();
+    }
+
+    // Opens an account; a negative balance becomes 0, as in BankAccount.setBalance.
+    // Returns false if the id is taken.
+    boolean open(long id, String holderName, double initialBalance) {
+        long cents = ConcurrentBankAccount.toCents(initialBalance);
+        if (initialBalance < 0) {
+            System.out.println("Balance must be non-negative. Setting balance to $0.0.");
+            cents = 0;
+        }
+        return accounts.putIfAbsent(id, new Account(id, holderName, cents)) == null;
+    }
+
+    boolean exists(long id) {
+        return accounts.containsKey(id);
+    }
+
+    String getAccountHolderName(long id) {
+        Account account = find(id);
+        Stripe stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            return account.holderName;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    double getBalance(long id) {
+        return ConcurrentBankAccount.toDollars(getBalanceCents(id));
+    }
+
+    long getBalanceCents(long id) {
+        Account account = find(id);
+        Stripe stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            return account.balanceCents;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    boolean deposit(long id, double amount) {
+        long cents = ConcurrentBankAccount.toCents(amount);
+        if (cents <= 0) {
+            RingLog.log("Deposit amount must be positive.");
+            return false;
+        }
+        Account account = accounts.get(id);
+        if (account == null) {
+            RingLog.log("No such account: {}", id);
+            return false;
+        }
+        Stripe stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            account.balanceCents = Math.addExact(account.balanceCents, cents);
+        } finally {
+            stripe.unlock();
+        }
+        RingLog.log("Successfully deposited: ${}", amount);
+        return true;
+    }
+
+    boolean withdraw(long id, double amount) {
+        long cents = ConcurrentBankAccount.toCents(amount);
+        if (cents <= 0) {
+            RingLog.log("Withdrawal amount must be positive.");
+            return false;
+        }
+        Account account = accounts.get(id);
+        if (account == null) {
+            RingLog.log("No such account: {}", id);
+            return false;
+        }
+        Stripe stripe = stripeOf(id);
+        stripe.lock();
+        try {
+            if (cents > account.balanceCents) {
+                RingLog.log("Insufficient balance.");
+                return false;
+            }
+            account.balanceCents -= cents;
+        } finally {
+            stripe.unlock();
+        }
+        RingLog.log("Successfully withdrew: ${}", amount);
+        return true;
+    }
+
+    // Moves money between two accounts: both change, or neither does
+    boolean transfer(long from, long to, double amount) {
+        return transferCents(from, to, ConcurrentBankAccount.toCents(amount));
+    }
+
+    boolean transferCents(long from, long to, long cents) {
+        if (cents <= 0) {
+            RingLog.log("Transfer amount must be positive.");
+            return false;
+        }
+        Account source = accounts.get(from);
+        Account target = accounts.get(to);
+        if (source == null || target == null) {
+            RingLog.log("No such account: {}", source == null ? from : to);
+            return false;
+        }
+        if (from == to) {
+            return getBalanceCents(from) >= cents; // nothing moves, but the rule still holds
+        }
+        int a = stripeIndex(from);
+        int b = stripeIndex(to);
+        // Always the lower stripe first, so two transfers can never wait for each other
+        Stripe first = stripes[Math.min(a, b)];
+        Stripe second = stripes[Math.max(a, b)];
+        first.lock();
+        if (second != first) {
+            second.lock();
+        }
+        try {
+            if (cents > source.balanceCents) {
+                RingLog.log("Insufficient balance.");
+                return false;
+            }
+            target.balanceCents = Math.addExact(target.balanceCents, cents);
+            source.balanceCents -= cents;
+        } finally {
+            if (second != first) {
+                second.unlock();
+            }
+            first.unlock();
+        }
+        RingLog.log("Successfully transferred: ${}", cents / 100.0);
+        return true;
+    }
+
+    // The sum of all balances at one moment: every stripe is locked, in order
+    long totalCents() {
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                stripes[locked].lock();
+            }
+            long total = 0;
+            for (Account account : accounts.values()) {
+                total += account.balanceCents;
+            }
+            return total;
+        } finally {
+            while (locked > 0) {
+                stripes[--locked].unlock();
+            }
+        }
+    }
+
+    private Account find(long id) {
+        Account account = accounts.get(id);
+        if (account == null) {
+            throw new IllegalArgumentException("No such account: " + id);
+        }
+        return account;
+    }
+
+    private Stripe stripeOf(long id) {
+        return stripes[stripeIndex(id)];
+    }
+
+    // Mixes the bits of the id, so ids that follow each other spread over the stripes
+    private int stripeIndex(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
+
+public class AccountStoreDemo {
+    static final int ACCOUNTS = 1_000_000;
+    static final int TRANSFERS = 2_000_000;
+
+    public static void main(String[] args) {
+        AccountStore store = new AccountStore();
+        store.open(1, "John Doe", 500.0);
+        store.open(2, "Jane Smith", 1000.0);
+        System.out.println("Transfer $200 from 1 to 2: " + store.transfer(1, 2, 200.0));
+        System.out.println("Transfer $2000 from 1 to 2: " + store.transfer(1, 2, 2000.0));
+        System.out.println("Balances: 1 -> $" + store.getBalance(1) + ", 2 -> $" + store.getBalance(2));
+
+        // Random transfers between a million accounts: one lock for all of them
+        // (like a synchronized map) against the striped store
+        int maxThreads = Math.max(8, Runtime.getRuntime().availableProcessors());
+        System.out.println("Cores: " + Runtime.getRuntime().availableProcessors());
+        for (int stripes : new int[] {1, AccountStore.DEFAULT_STRIPES}) {
+            AccountStore bank = new AccountStore(stripes);
+            for (long id = 0; id < ACCOUNTS; id++) {
+                bank.open(id, "Holder " + id, 100.0);
+            }
+            long before = bank.totalCents();
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                int n = threads;
+                long start = System.nanoTime();
+                long done = ConcurrentAccountDemo.runThreads(n, () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long ok = 0;
+                    for (int i = 0; i < TRANSFERS / n; i++) {
+                        if (bank.transferCents(random.nextInt(ACCOUNTS), random.nextInt(ACCOUNTS),
+                                1 + random.nextInt(5000))) {
+                            ok++;
+                        }
+                    }
+                    return ok;
+                });
+                long nanos = System.nanoTime() - start;
+                System.out.printf("%4d stripe%s, %d threads: %6.2f M transfers/s (%d succeeded)%n",
+                        bank.stripes(), stripes == 1 ? " " : "s", n, TRANSFERS * 1e3 / nanos, done);
+            }
+            System.out.println("Money kept: " + (bank.totalCents() == before));
+        }
+    }
+}
@@ -0,0 +1,378 @@
+/* Millions of bank accounts stored outside the Java heap.
+
+   Every BankAccount (Encapsulation.java) is an object with a header, a
+   reference to a String (itself an object holding a byte[], another object)
+   and a double: around 90 bytes and three objects per account. With tens of
+   millions of accounts those objects fill the heap, and every full garbage
+   collection has to visit all of them.
+
+   OffHeapAccountTable keeps the accounts in rows of 16 bytes in direct
+   ByteBuffers, memory that the garbage collector does not look into:
+
+       offset  0  long  balance in cents
+               8  int   holder name id (0 means no name)
+              12  int   1 if the account is open
+
+   The row of account id is simply row number id, so finding it is a
+   multiplication, not a hash lookup. One direct buffer can hold at most 2 GB,
+   so the rows are split into chunks of 16M rows (256 MB), each allocated the
+   first time one of its rows is opened.
+
+   The foreign memory API (jdk.incubator.foreign on JDK 17) would allow one
+   segment of any size instead of the chunks. It is not used because its
+   classes changed in every release while it incubated: MemoryAccess is gone
+   in JDK 18, ResourceScope became MemorySession in 19 and Arena in 20, so
+   code written against it compiles on exactly one JDK. The part of the Vector
+   API that vectorsum.java uses has stayed the same across those releases,
+   which is why that file does use its incubator module. Direct ByteBuffers
+   work on every JDK, and the chunks cost one shift and one array load per row.
+
+   Many accounts share a holder name, and a String per row would bring the
+   objects back. So names are stored once, in a NameDictionary, and the row
+   only keeps the number of its name.
+
+   AccountRow is a flyweight: a small cursor that points at one row and has
+   the getters, setters, deposit and withdraw of BankAccount, with the same
+   rules and RingLog messages. A deposit that would overflow the balance is
+   refused, like INVALID_AMOUNT in ringprocessor.java. moveTo() points it at another row, so a loop
+   over millions of accounts needs just one of them.
+
+   Like BankAccount, the table is not thread-safe: use it from one thread, or
+   guard it with a lock. Direct memory is limited by -XX:MaxDirectMemorySize
+   (the maximum heap size by default). Names are never removed from the
+   dictionary.
+
+   Compile together with concurrentaccount.java and ringlog.java. */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Every distinct holder name once, by number; number 0 is "no name"
+class NameDictionary {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    NameDictionary() {
+        names.add(null);
+    }
+
+    // The number of the name, adding it if it is new
+    int idOf(String name) {
+        if (name == null) {
+            return 0;
+        }
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    String name(int id) {
+        return names.get(id);
+    }
+
+    // Distinct names stored (not counting "no name")
+    int size() {
+        return names.size() - 1;
+    }
+}
+
+class OffHeapAccountTable {
+    static final int ROW_SIZE = 16;
+    static final int BALANCE = 0;
+    static final int NAME = 8;
+    static final int OPEN = 12;
+    // 16M rows of 16 bytes = 256 MB per chunk
+    static final int CHUNK_SHIFT = 24;
+    static final int CHUNK_ROWS = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK_ROWS - 1;
+
+    private final long capacity;
+    private final ByteBuffer[] chunks;
+    private final NameDictionary names = new NameDictionary();
+    private long size;
+
+    // Room for the account ids 0 .. capacity - 1
+    OffHeapAccountTable(long capacity) {
+        if (capacity <= 0 || capacity > (long) Integer.MAX_VALUE * CHUNK_ROWS) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+        this.capacity = capacity;
+        this.chunks = new ByteBuffer[(int) ((capacity + CHUNK_ROWS - 1) >>> CHUNK_SHIFT)];
+    }
+
+    long capacity() {
+        return capacity;
+    }
+
+    // Open accounts
+    long size() {
+        return size;
+    }
+
+    NameDictionary names() {
+        return names;
+    }
+
+    // Direct memory allocated for rows so far
+    long offHeapBytes() {
+        long bytes = 0;
+        for (ByteBuffer chunk : chunks) {
+            bytes += chunk == null ? 0 : chunk.capacity();
+        }
+        return bytes;
+    }
+
+    // Opens an account; a negative balance becomes 0, as in BankAccount.setBalance.
+    // Returns false if the id is taken.
+    boolean open(long id, String holderName, double initialBalance) {
+        checkId(id);
+        ByteBuffer chunk = chunk(id);
+        if (chunk == null) {
+            int rows = (int) Math.min(CHUNK_ROWS, capacity - (id & ~(long) CHUNK_MASK));
+            chunk = ByteBuffer.allocateDirect(rows * ROW_SIZE).order(ByteOrder.nativeOrder());
+            chunks[(int) (id >>> CHUNK_SHIFT)] = chunk;
+        }
+        int offset = offset(id);
+        if (chunk.getInt(offset + OPEN) != 0) {
+            return false;
+        }
+        chunk.putInt(offset + OPEN, 1);
+        chunk.putInt(offset + NAME, names.idOf(holderName));
+        size++;
+        row(id).setBalance(initialBalance);
+        return true;
+    }
+
+    boolean exists(long id) {
+        if (id < 0 || id >= capacity) {
+            return false;
+        }
+        ByteBuffer chunk = chunk(id);
+        return chunk != null && chunk.getInt(offset(id) + OPEN) != 0;
+    }
+
+    // A new view of the row of an open account
+    AccountRow row(long id) {
+        return new AccountRow(this).moveTo(id);
+    }
+
+    // The sum of all balances, read straight from the rows
+    long totalCents() {
+        long total = 0;
+        for (ByteBuffer chunk : chunks) {
+            if (chunk == null) {
+                continue;
+            }
+            for (int offset = 0; offset < chunk.capacity(); offset += ROW_SIZE) {
+                total += chunk.getLong(offset + BALANCE);
+            }
+        }
+        return total;
+    }
+
+    // The chunk of an open account; throws if the account is not open
+    ByteBuffer openChunk(long id) {
+        if (!exists(id)) {
+            throw new IllegalArgumentException("No such account: " + id);
+        }
+        return chunk(id);
+    }
+
+    static int offset(long id) {
+        return (int) (id & CHUNK_MASK) * ROW_SIZE;
+    }
+
+    private ByteBuffer chunk(long id) {
+        return chunks[(int) (id >>> CHUNK_SHIFT)];
+    }
+
+    private void checkId(long id) {
+        if (id < 0 || id >= capacity) {
+            throw new IndexOutOfBoundsException("Account id " + id + " outside 0 .. " + (capacity - 1));
+        }
+    }
+}
+
+// A view of one row of an OffHeapAccountTable with the methods of BankAccount.
+// It holds no account data itself, only where the row is.
+class AccountRow {
+    private final OffHeapAccountTable table;
+    private ByteBuffer chunk;
+    private int offset;
+    private long id = -1;
+
+    AccountRow(OffHeapAccountTable table) {
+        this.table = table;
+    }
+
+    // Points this view at another open account
+    AccountRow moveTo(long id) {
+        this.chunk = table.openChunk(id);
+        this.offset = OffHeapAccountTable.offset(id);
+        this.id = id;
+        return this;
+    }
+
+    long id() {
+        return id;
+    }
+
+    public String getAccountHolderName() {
+        return table.names().name(chunk.getInt(offset + OffHeapAccountTable.NAME));
+    }
+
+    public void setAccountHolderName(String accountHolderName) {
+        chunk.putInt(offset + OffHeapAccountTable.NAME, table.names().idOf(accountHolderName));
+    }
+
+    public double getBalance() {
+        return ConcurrentBankAccount.toDollars(getBalanceCents());
+    }
+
+    public long getBalanceCents() {
+        return chunk.getLong(offset + OffHeapAccountTable.BALANCE);
+    }
+
+    // Same rule as BankAccount: a negative balance becomes 0
+    public void setBalance(double balance) {
+        if (balance >= 0) {
+            setBalanceCents(ConcurrentBankAccount.toCents(balance));
+        } else {
+            System.out.println("Balance must be non-negative. Setting balance to $0.0.");
+            setBalanceCents(0);
+        }
+    }
+
+    public boolean deposit(double amount) {
+        long cents = ConcurrentBankAccount.toCents(amount);
+        if (cents <= 0) {
+            RingLog.log("Deposit amount must be positive.");
+            return false;
+        }
+        long balance = getBalanceCents();
+        if (cents > Long.MAX_VALUE - balance) {
+            RingLog.log("Deposit would overflow the balance.");
+            return false;
+        }
+        setBalanceCents(balance + cents);
+        RingLog.log("Successfully deposited: ${}", amount);
+        return true;
+    }
+
+    public boolean withdraw(double amount) {
+        long cents = ConcurrentBankAccount.toCents(amount);
+        if (cents <= 0) {
+            RingLog.log("Withdrawal amount must be positive.");
+            return false;
+        }
+        long balance = getBalanceCents();
+        if (cents > balance) {
+            RingLog.log("Insufficient balance.");
+            return false;
+        }
+        setBalanceCents(balance - cents);
+        RingLog.log("Successfully withdrew: ${}", amount);
+        return true;
+    }
+
+    private void setBalanceCents(long cents) {
+        chunk.putLong(offset + OffHeapAccountTable.BALANCE, cents);
+    }
+}
+
+public class OffHeapAccountDemo {
+    static final int DISTINCT_NAMES = 10_000;
+
+    // The two fields of BankAccount in Encapsulation.java, as a heap object
+    static final class HeapAccount {
+        final String accountHolderName;
+        double balance;
+
+        HeapAccount(String accountHolderName, double balance) {
+            this.accountHolderName = accountHolderName;
+            this.balance = balance;
+        }
+    }
+
+    public static void main(String[] args) {
+        OffHeapAccountTable small = new OffHeapAccountTable(10);
+        small.open(1, "John Doe", 500.0);
+        AccountRow account = small.row(1);
+        account.setAccountHolderName("Jane Smith");
+        account.setBalance(1000.0);
+        account.deposit(200.0);
+        account.withdraw(150.0);
+        System.out.println("Account Holder: " + account.getAccountHolderName());
+        System.out.println("Current Balance: $" + account.getBalance());
+        account.setBalance(-5.0);
+        account.setBalance(ConcurrentBankAccount.toDollars(Long.MAX_VALUE - 100));
+        System.out.println("Deposit $2 onto a balance near the maximum: " + account.deposit(2.0));
+
+        // The same accounts as heap objects and as table rows. Every holder
+        // name comes in as its own String, as it would when read from a file.
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 3_000_000;
+        String[] pool = new String[DISTINCT_NAMES];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = "Holder " + i;
+        }
+
+        // Each in its own method, so the objects are garbage once it returns
+        heapObjects(count, pool);
+        offHeapTable(count, pool);
+    }
+
+    static void heapObjects(int count, String[] pool) {
+        long before = usedHeap();
+        HeapAccount[] objects = new HeapAccount[count];
+        for (int i = 0; i < count; i++) {
+            objects[i] = new HeapAccount(new String(pool[i % pool.length]), 100.0);
+        }
+        long heap = usedHeap() - before;
+        long gcNanos = fullGcNanos();
+        double total = 0;
+        for (HeapAccount a : objects) {
+            total += a.balance;
+        }
+        System.out.printf("%,d account objects: %,d MB heap, full GC %.1f ms, total $%.2f%n",
+                count, heap >> 20, gcNanos / 1e6, total);
+    }
+
+    static void offHeapTable(int count, String[] pool) {
+        long before = usedHeap();
+        OffHeapAccountTable table = new OffHeapAccountTable(count);
+        for (int i = 0; i < count; i++) {
+            table.open(i, new String(pool[i % pool.length]), 100.0);
+        }
+        long heap = usedHeap() - before;
+        long gcNanos = fullGcNanos();
+        // One flyweight for every row
+        AccountRow row = new AccountRow(table);
+        for (int i = 0; i + 1 < count; i += 2) {
+            row.moveTo(i).deposit(0.50);
+            row.moveTo(i + 1).withdraw(0.50);
+        }
+        System.out.printf("%,d table rows: %,d MB heap (%,d names) + %,d MB off-heap, full GC %.1f ms, "
+                        + "total $%.2f%n", table.size(), heap >> 20, table.names().size(),
+                table.offHeapBytes() >> 20, gcNanos / 1e6, table.totalCents() / 100.0);
+    }
+
+    static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static long fullGcNanos() {
+        long start = System.nanoTime();
+        System.gc();
+        return System.nanoTime() - start;
+    }
+}
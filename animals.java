@@ -0,0 +1,291 @@
+/* The Animal / Dog / Cat classes from Dispatchmethod.java as agents of a
+   simulation, and a scheduler that runs a whole population of them tick by tick.
+
+   In every tick each animal acts once: it moves, and now and then it makes
+   its sound. Running a million animals one after the other on one thread
+   leaves the other cores idle, and printing every sound with
+   System.out.println takes a lock per line.
+
+   TickScheduler splits the population into chunks and hands them to a
+   ForkJoinPool, whose threads steal chunks from each other when they run out.
+   A tick ends only when every chunk of it has finished (invokeAll waits for
+   all of them), so that is the barrier between ticks: no animal starts tick
+   n + 1 while another is still in tick n.
+
+   Each chunk writes its sounds into its own StringBuilder, which it keeps
+   from tick to tick. When the tick is over the buffers are joined in chunk
+   order and written to the sink in one call. The output is therefore the same,
+   line for line, as a single-threaded run.
+
+   The time of every tick is recorded, and percentiles() reports how long the
+   typical (p50) and the slow (p90, p99, max) ticks took.
+
+   This file compiles on its own. */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class Animal {
+    // Every this many ticks an animal makes its sound
+    static final int SOUND_PERIOD = 10;
+
+    final int id;
+    double x;
+    double y;
+    private long seed;
+
+    Animal(int id) {
+        this.id = id;
+        this.seed = id * 0x9E3779B97F4A7C15L + 1;
+    }
+
+    public void sound() {
+        System.out.println(soundText());
+    }
+
+    // What sound() prints
+    public String soundText() {
+        return "Animal makes a sound";
+    }
+
+    // One tick of the simulation: move, and sometimes make a sound into out
+    public void act(long tick, StringBuilder out) {
+        move(speed());
+        if ((tick + id) % SOUND_PERIOD == 0) {
+            out.append(soundText()).append(" (").append(id).append(")\n");
+        }
+    }
+
+    double speed() {
+        return 1.0;
+    }
+
+    // A random step; the random numbers come from the animal's own generator,
+    // so the walk is the same however the animals are spread over threads
+    final void move(double step) {
+        seed = seed * 6364136223846793005L + 1442695040888963407L;
+        double angle = (seed >>> 11) * 0x1.0p-53 * 2 * Math.PI;
+        x += step * Math.cos(angle);
+        y += step * Math.sin(angle);
+    }
+}
+
+class Dog extends Animal {
+    Dog(int id) {
+        super(id);
+    }
+
+    @Override
+    public String soundText() {
+        return "Dog barks";
+    }
+
+    @Override
+    double speed() {
+        return 2.0;
+    }
+}
+
+class Cat extends Animal {
+    Cat(int id) {
+        super(id);
+    }
+
+    @Override
+    public String soundText() {
+        return "Cat meows";
+    }
+
+    // Cats sleep for half of the ticks
+    @Override
+    public void act(long tick, StringBuilder out) {
+        if ((tick / 5 + id) % 2 == 0) {
+            super.act(tick, out);
+        }
+    }
+}
+
+class TickScheduler {
+    // A few chunks per worker, so a thread that finishes early can steal one,
+    // but no chunk so big that one slow chunk holds up the tick
+    static final int CHUNKS_PER_WORKER = 4;
+    static final int MAX_CHUNK = 4096;
+
+    private final List<? extends Animal> animals;
+    private final ForkJoinPool pool;
+    private final OutputStream sink;
+
+    // One output buffer per chunk, reused every tick
+    private final int chunkSize;
+    private final StringBuilder[] buffers;
+
+    private long tick;
+    private long[] tickNanos = new long[64];
+    private int ticksRun;
+    private long bytesWritten;
+
+    TickScheduler(List<? extends Animal> animals, ForkJoinPool pool, OutputStream sink) {
+        this.animals = animals;
+        this.pool = pool;
+        this.sink = sink;
+        this.chunkSize = Math.max(1, Math.min(MAX_CHUNK,
+                animals.size() / (pool.getParallelism() * CHUNKS_PER_WORKER)));
+        int chunks = Math.max(1, (animals.size() + chunkSize - 1) / chunkSize);
+        this.buffers = new StringBuilder[chunks];
+        for (int i = 0; i < chunks; i++) {
+            buffers[i] = new StringBuilder();
+        }
+    }
+
+    // Runs one tick: every animal acts once, then the sounds are written
+    void runTick() {
+        long start = System.nanoTime();
+        long current = tick++;
+        List<ChunkTask> tasks = new ArrayList<>(buffers.length);
+        for (int i = 0; i < buffers.length; i++) {
+            tasks.add(new ChunkTask(current, i));
+        }
+        // invokeAll returns when every chunk is done: the barrier of this tick
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        writeSounds();
+        record(System.nanoTime() - start);
+    }
+
+    void runTicks(int count) {
+        for (int i = 0; i < count; i++) {
+            runTick();
+        }
+    }
+
+    long ticksRun() {
+        return ticksRun;
+    }
+
+    long bytesWritten() {
+        return bytesWritten;
+    }
+
+    int chunks() {
+        return buffers.length;
+    }
+
+    // Tick times in nanoseconds at the given percentiles (0 to 100)
+    long[] percentiles(double... percents) {
+        long[] sorted = Arrays.copyOf(tickNanos, ticksRun);
+        Arrays.sort(sorted);
+        long[] result = new long[percents.length];
+        for (int i = 0; i < percents.length; i++) {
+            if (sorted.length == 0) {
+                continue;
+            }
+            // Nearest-rank percentile
+            int rank = (int) Math.ceil(percents[i] / 100 * sorted.length);
+            result[i] = sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+        }
+        return result;
+    }
+
+    // Forgets the recorded tick times, e.g. after warming up
+    void resetStats() {
+        ticksRun = 0;
+    }
+
+    // All chunk buffers, in order, as one write
+    private void writeSounds() {
+        int length = 0;
+        for (StringBuilder buffer : buffers) {
+            length += buffer.length();
+        }
+        if (length == 0) {
+            return;
+        }
+        StringBuilder all = new StringBuilder(length);
+        for (StringBuilder buffer : buffers) {
+            all.append(buffer);
+            buffer.setLength(0);
+        }
+        byte[] bytes = all.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            sink.write(bytes);
+            sink.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        bytesWritten += bytes.length;
+    }
+
+    private void record(long nanos) {
+        if (ticksRun == tickNanos.length) {
+            tickNanos = Arrays.copyOf(tickNanos, ticksRun * 2);
+        }
+        tickNanos[ticksRun++] = nanos;
+    }
+
+    private class ChunkTask extends RecursiveAction {
+        private final long tick;
+        private final int chunk;
+
+        ChunkTask(long tick, int chunk) {
+            this.tick = tick;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute() {
+            StringBuilder out = buffers[chunk];
+            int end = Math.min(animals.size(), (chunk + 1) * chunkSize);
+            for (int i = chunk * chunkSize; i < end; i++) {
+                animals.get(i).act(tick, out);
+            }
+        }
+    }
+}
+
+public class AnimalSimulationDemo {
+    static List<Animal> population(int count) {
+        List<Animal> animals = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            animals.add(i % 3 == 0 ? new Animal(i) : i % 3 == 1 ? new Dog(i) : new Cat(i));
+        }
+        return animals;
+    }
+
+    public static void main(String[] args) {
+        // Dynamic method dispatch as in Dispatchmethod.java
+        Animal animal = new Dog(0);
+        animal.sound();
+        animal = new Cat(1);
+        animal.sound();
+
+        // A few animals, two ticks, straight to the console
+        System.out.println("-- 12 animals, ticks 0 and 1 --");
+        new TickScheduler(population(12), ForkJoinPool.commonPool(), System.out).runTicks(2);
+
+        // A large population; the sounds go to a stream that discards them
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        OutputStream discard = OutputStream.nullOutputStream();
+        List<Animal> animals = population(count);
+        for (ForkJoinPool pool : new ForkJoinPool[] {new ForkJoinPool(1), ForkJoinPool.commonPool()}) {
+            TickScheduler scheduler = new TickScheduler(animals, pool, discard);
+            scheduler.runTicks(20); // warm-up
+            scheduler.resetStats();
+            scheduler.runTicks(100);
+            long[] p = scheduler.percentiles(50, 90, 99, 100);
+            System.out.printf("%,d animals, %d threads, %d chunks: tick p50 %.2f ms, p90 %.2f ms, "
+                    + "p99 %.2f ms, max %.2f ms%n", count, pool.getParallelism(), scheduler.chunks(),
+                    p[0] / 1e6, p[1] / 1e6, p[2] / 1e6, p[3] / 1e6);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/* Lazy array expressions: chaining Calculator operations on whole arrays
+   without a temporary array for every step.
+
+   Written step by step, ((a + b) * c) / d on big arrays makes a full new array
+   for a + b, another for * c, and another for / d, and reads and writes all of
+   them through main memory.
+
+   An ArrayExpr only records the steps. Nothing is computed until evaluate()
+   is called; then the steps are "fused": the data is processed in small chunks
+   that fit in the CPU cache, and every step is applied to a chunk before moving
+   on to the next one. Only the result array is written, once. Chunks are
+   independent, so they can also be handed to a ForkJoinPool.
+
+   Division by zero gives 0.0, the same as AdvancedCalculator.divide. */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class ArrayExpr {
+    // 2048 doubles = 16 KB, which stays in the L1 cache of most CPUs
+    static final int CHUNK = 2048;
+
+    private enum Op { ADD, SUBTRACT, MULTIPLY, DIVIDE }
+
+    // One recorded step: either with an array or with a single number
+    private static class Step {
+        final Op op;
+        final double[] array;
+        final double scalar;
+
+        Step(Op op, double[] array, double scalar) {
+            this.op = op;
+            this.array = array;
+            this.scalar = scalar;
+        }
+    }
+
+    private final double[] source;
+    private final List<Step> steps;
+
+    private ArrayExpr(double[] source, List<Step> steps) {
+        this.source = source;
+        this.steps = steps;
+    }
+
+    // Starts an expression; the array is read when the expression is evaluated
+    static ArrayExpr of(double[] source) {
+        return new ArrayExpr(source, Collections.emptyList());
+    }
+
+    // Each step returns a new expression, so a half-built one can be reused
+    ArrayExpr add(double[] other) {
+        return then(Op.ADD, other, 0.0);
+    }
+
+    ArrayExpr add(double value) {
+        return then(Op.ADD, null, value);
+    }
+
+    ArrayExpr subtract(double[] other) {
+        return then(Op.SUBTRACT, other, 0.0);
+    }
+
+    ArrayExpr subtract(double value) {
+        return then(Op.SUBTRACT, null, value);
+    }
+
+    ArrayExpr multiply(double[] other) {
+        return then(Op.MULTIPLY, other, 0.0);
+    }
+
+    ArrayExpr multiply(double value) {
+        return then(Op.MULTIPLY, null, value);
+    }
+
+    ArrayExpr divide(double[] other) {
+        return then(Op.DIVIDE, other, 0.0);
+    }
+
+    ArrayExpr divide(double value) {
+        return then(Op.DIVIDE, null, value);
+    }
+
+    int length() {
+        return source.length;
+    }
+
+    private ArrayExpr then(Op op, double[] array, double scalar) {
+        if (array != null && array.length != source.length) {
+            throw new IllegalArgumentException("Array has length " + array.length
+                    + " but the expression has length " + source.length);
+        }
+        List<Step> more = new ArrayList<>(steps);
+        more.add(new Step(op, array, scalar));
+        return new ArrayExpr(source, more);
+    }
+
+    // Computes the result into a new array
+    double[] evaluate() {
+        double[] out = new double[source.length];
+        evaluateInto(out);
+        return out;
+    }
+
+    // Computes the result into out. out may be the array the expression started
+    // from (it is then overwritten), but not one of the arrays used in a step:
+    // that throws IllegalArgumentException.
+    void evaluateInto(double[] out) {
+        checkOutput(out);
+        for (int from = 0; from < out.length; from += CHUNK) {
+            evaluateChunk(out, from, Math.min(from + CHUNK, out.length));
+        }
+    }
+
+    // Same as evaluateInto, with the chunks spread over the pool's threads
+    void evaluateInto(double[] out, ForkJoinPool pool) {
+        checkOutput(out);
+        int chunks = (out.length + CHUNK - 1) / CHUNK;
+        pool.invoke(new ChunkTask(out, 0, chunks));
+    }
+
+    private void checkOutput(double[] out) {
+        if (out.length != source.length) {
+            throw new IllegalArgumentException("Output has length " + out.length
+                    + " but the expression has length " + source.length);
+        }
+        for (Step step : steps) {
+            if (step.array == out) {
+                throw new IllegalArgumentException("Output must not be an array used in a step");
+            }
+        }
+    }
+
+    // Runs every step over out[from..to) while that part is in the cache
+    private void evaluateChunk(double[] out, int from, int to) {
+        if (out != source) {
+            System.arraycopy(source, from, out, from, to - from);
+        }
+        for (Step step : steps) {
+            double[] b = step.array;
+            if (b == null) {
+                applyScalar(step.op, step.scalar, out, from, to);
+                continue;
+            }
+            switch (step.op) {
+                case ADD:
+                    for (int i = from; i < to; i++) {
+                        out[i] += b[i];
+                    }
+                    break;
+                case SUBTRACT:
+                    for (int i = from; i < to; i++) {
+                        out[i] -= b[i];
+                    }
+                    break;
+                case MULTIPLY:
+                    for (int i = from; i < to; i++) {
+                        out[i] *= b[i];
+                    }
+                    break;
+                case DIVIDE:
+                    for (int i = from; i < to; i++) {
+                        out[i] = b[i] != 0 ? out[i] / b[i] : 0.0;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static void applyScalar(Op op, double value, double[] out, int from, int to) {
+        switch (op) {
+            case ADD:
+                for (int i = from; i < to; i++) {
+                    out[i] += value;
+                }
+                break;
+            case SUBTRACT:
+                for (int i = from; i < to; i++) {
+                    out[i] -= value;
+                }
+                break;
+            case MULTIPLY:
+                for (int i = from; i < to; i++) {
+                    out[i] *= value;
+                }
+                break;
+            case DIVIDE:
+                if (value == 0) {
+                    java.util.Arrays.fill(out, from, to, 0.0);
+                } else {
+                    for (int i = from; i < to; i++) {
+                        out[i] /= value;
+                    }
+                }
+                break;
+        }
+    }
+
+    // Splits a range of chunk numbers until there are only a few left
+    private class ChunkTask extends RecursiveAction {
+        final double[] out;
+        final int firstChunk;
+        final int lastChunk; // exclusive
+
+        ChunkTask(double[] out, int firstChunk, int lastChunk) {
+            this.out = out;
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (lastChunk - firstChunk <= 8) {
+                for (int c = firstChunk; c < lastChunk; c++) {
+                    int from = c * CHUNK;
+                    evaluateChunk(out, from, Math.min(from + CHUNK, out.length));
+                }
+                return;
+            }
+            int middle = (firstChunk + lastChunk) >>> 1;
+            invokeAll(new ChunkTask(out, firstChunk, middle), new ChunkTask(out, middle, lastChunk));
+        }
+    }
+}
+
+public class ArrayExprDemo {
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        double[] a = new double[size];
+        double[] b = new double[size];
+        double[] c = new double[size];
+        double[] d = new double[size];
+        java.util.Random random = new java.util.Random(5);
+        for (int i = 0; i < size; i++) {
+            a[i] = random.nextDouble();
+            b[i] = random.nextDouble();
+            c[i] = random.nextDouble();
+            d[i] = 1 + random.nextDouble();
+        }
+
+        // ((a + b) * c) / d - 1, recorded but not computed yet
+        ArrayExpr expr = ArrayExpr.of(a).add(b).multiply(c).divide(d).subtract(1.0);
+
+        double[] out = new double[size];
+        double[] temp1 = new double[size];
+        double[] temp2 = new double[size];
+        double[] temp3 = new double[size];
+        long eager = MicroBench.bestNanos(() -> {
+            // One full pass (and one full array) per step
+            BatchKernels.add(a, b, temp1);
+            BatchKernels.multiply(temp1, c, temp2);
+            BatchKernels.divide(temp2, d, temp3);
+            for (int i = 0; i < size; i++) {
+                out[i] = temp3[i] - 1.0;
+            }
+            return (long) out[size / 2];
+        });
+        long fused = MicroBench.bestNanos(() -> {
+            expr.evaluateInto(out);
+            return (long) out[size / 2];
+        });
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        long parallel = MicroBench.bestNanos(() -> {
+            expr.evaluateInto(out, pool);
+            return (long) out[size / 2];
+        });
+
+        MicroBench.report("step by step", eager, eager);
+        MicroBench.report("fused", fused, eager);
+        MicroBench.report("fused, parallel", parallel, eager);
+
+        // out still holds the parallel result; the eager steps left theirs in temp3
+        double[] fusedResult = expr.evaluate();
+        for (int i = 0; i < size; i++) {
+            temp3[i] -= 1.0;
+        }
+        System.out.println("Same result: " + (java.util.Arrays.equals(fusedResult, temp3)
+                && java.util.Arrays.equals(fusedResult, out)));
+    }
+}
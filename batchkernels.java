@@ -0,0 +1,267 @@
+/* Batch ("column") versions of the Calculator operations.
+
+   Calling calc.add(a[i], b[i]) once per element works, but for millions of
+   elements a loop that does the whole column at once is much faster: there is
+   one call instead of millions, nothing is boxed, and the JIT can turn the
+   simple loop into vector (SIMD) instructions.
+
+   Every method takes the two inputs and an output array that the caller
+   allocates once and reuses, so the loop itself allocates nothing. The long
+   form works on slices: element i of the result is
+       out[outOffset + i] = a[aOffset + i] OP b[bOffset + i]    for i < length
+   The short form uses whole arrays, which must all have the same length.
+
+   The type combinations are the ones Calculator.add already has:
+   (int, int), (double, double), (double, int) and (int, double).
+   Integer division truncates and throws ArithmeticException on a zero divisor,
+   the same as the / operator. */
+
+import java.util.Objects;
+
+class BatchKernels {
+    private BatchKernels() {
+    }
+
+    // Checks every slice once up front, so the loops need no bounds checks
+    private static void checkSlices(int aLength, int aOffset, int bLength, int bOffset,
+                                    int outLength, int outOffset, int length) {
+        Objects.checkFromIndexSize(aOffset, length, aLength);
+        Objects.checkFromIndexSize(bOffset, length, bLength);
+        Objects.checkFromIndexSize(outOffset, length, outLength);
+    }
+
+    private static int sameLength(int aLength, int bLength, int outLength) {
+        if (aLength != bLength || aLength != outLength) {
+            throw new IllegalArgumentException("Arrays must have the same length: "
+                    + aLength + ", " + bLength + ", " + outLength);
+        }
+        return outLength;
+    }
+
+    // ---- add ----
+
+    static void add(int[] a, int[] b, int[] out) {
+        add(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void add(int[] a, int aOffset, int[] b, int bOffset,
+            int[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] + b[bOffset + i];
+        }
+    }
+
+    static void add(double[] a, double[] b, double[] out) {
+        add(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void add(double[] a, int aOffset, double[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] + b[bOffset + i];
+        }
+    }
+
+    static void add(double[] a, int[] b, double[] out) {
+        add(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void add(double[] a, int aOffset, int[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] + b[bOffset + i];
+        }
+    }
+
+    static void add(int[] a, double[] b, double[] out) {
+        add(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void add(int[] a, int aOffset, double[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] + b[bOffset + i];
+        }
+    }
+
+    // ---- subtract ----
+
+    static void subtract(int[] a, int[] b, int[] out) {
+        subtract(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void subtract(int[] a, int aOffset, int[] b, int bOffset,
+            int[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] - b[bOffset + i];
+        }
+    }
+
+    static void subtract(double[] a, double[] b, double[] out) {
+        subtract(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void subtract(double[] a, int aOffset, double[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] - b[bOffset + i];
+        }
+    }
+
+    static void subtract(double[] a, int[] b, double[] out) {
+        subtract(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void subtract(double[] a, int aOffset, int[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] - b[bOffset + i];
+        }
+    }
+
+    static void subtract(int[] a, double[] b, double[] out) {
+        subtract(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void subtract(int[] a, int aOffset, double[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] - b[bOffset + i];
+        }
+    }
+
+    // ---- multiply ----
+
+    static void multiply(int[] a, int[] b, int[] out) {
+        multiply(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void multiply(int[] a, int aOffset, int[] b, int bOffset,
+            int[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] * b[bOffset + i];
+        }
+    }
+
+    static void multiply(double[] a, double[] b, double[] out) {
+        multiply(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void multiply(double[] a, int aOffset, double[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] * b[bOffset + i];
+        }
+    }
+
+    static void multiply(double[] a, int[] b, double[] out) {
+        multiply(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void multiply(double[] a, int aOffset, int[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] * b[bOffset + i];
+        }
+    }
+
+    static void multiply(int[] a, double[] b, double[] out) {
+        multiply(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void multiply(int[] a, int aOffset, double[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] * b[bOffset + i];
+        }
+    }
+
+    // ---- divide ----
+
+    static void divide(int[] a, int[] b, int[] out) {
+        divide(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void divide(int[] a, int aOffset, int[] b, int bOffset,
+            int[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] / b[bOffset + i];
+        }
+    }
+
+    static void divide(double[] a, double[] b, double[] out) {
+        divide(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void divide(double[] a, int aOffset, double[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] / b[bOffset + i];
+        }
+    }
+
+    static void divide(double[] a, int[] b, double[] out) {
+        divide(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void divide(double[] a, int aOffset, int[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] / b[bOffset + i];
+        }
+    }
+
+    static void divide(int[] a, double[] b, double[] out) {
+        divide(a, 0, b, 0, out, 0, sameLength(a.length, b.length, out.length));
+    }
+
+    static void divide(int[] a, int aOffset, double[] b, int bOffset,
+            double[] out, int outOffset, int length) {
+        checkSlices(a.length, aOffset, b.length, bOffset, out.length, outOffset, length);
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = a[aOffset + i] / b[bOffset + i];
+        }
+    }
+}
+
+public class BatchKernelsDemo {
+    public static void main(String[] args) {
+        int[] a = {1, 2, 3, 4, 5};
+        int[] b = {10, 20, 30, 40, 50};
+        double[] d = {0.5, 1.5, 2.5, 3.5, 4.5};
+
+        // The output buffers are allocated once and reused
+        int[] intOut = new int[5];
+        double[] doubleOut = new double[5];
+
+        BatchKernels.add(a, b, intOut);
+        System.out.println("a + b: " + java.util.Arrays.toString(intOut));
+
+        BatchKernels.multiply(a, d, doubleOut);
+        System.out.println("a * d: " + java.util.Arrays.toString(doubleOut));
+
+        // Only the middle three elements: b[1..3] / a[1..3] into intOut[0..2]
+        BatchKernels.divide(b, 1, a, 1, intOut, 0, 3);
+        System.out.println("b / a (slice): " + java.util.Arrays.toString(intOut));
+
+        // The same through the Calculator's overloads
+        Calculator calc = new Calculator();
+        calc.add(d, a, doubleOut);
+        System.out.println("d + a: " + java.util.Arrays.toString(doubleOut));
+    }
+}
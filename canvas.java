@@ -0,0 +1,332 @@
+/* Drawing the shapes of shapes.java as pixels instead of text.
+
+   Canvas is an image in memory: one int per pixel (0xRRGGBB), row after row.
+   Circle and Rectangle paint themselves into it with Shape.draw(canvas, color).
+   A pixel belongs to a shape when the centre of the pixel is inside the shape,
+   and every row of a shape is filled with one Arrays.fill.
+
+   Scene keeps the shapes of a picture and draws them into a canvas the way a
+   screen would:
+     - The canvas is cut into square tiles of TILE x TILE pixels. The tiles do
+       not share any pixels, so different threads of a ForkJoinPool can paint
+       different tiles at the same time without locks.
+     - Moving, adding or removing a shape only marks the tiles under its old
+       and new position as "dirty". render() repaints just those tiles, and
+       leaves the rest of the picture as it was. Redrawing a big scene where a
+       few shapes moved then costs a few tiles instead of the whole canvas.
+     - To find the shapes that touch a tile it asks a ShapeGrid
+       (spatialindex.java) instead of going through every shape.
+   Shapes are painted in the order they were added, so later shapes cover
+   earlier ones, the same on every tile.
+
+   Compile together with shapes.java, spatialindex.java and microbench.java. */
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+class Canvas {
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    Canvas(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Size must be positive: " + width + " x " + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[Math.multiplyExact(width, height)];
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int get(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    // Fills the part of the box that is inside the canvas
+    public void fill(int color, int x0, int y0, int x1, int y1) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, width);
+        y1 = Math.min(y1, height);
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(pixels, y * width + x0, y * width + Math.max(x0, x1), color);
+        }
+    }
+
+    // Paints the pixels whose centre is inside the rectangle, within the clip box
+    // (clipX0 <= x < clipX1, clipY0 <= y < clipY1)
+    public void fillRectangle(double x, double y, double w, double h, int color,
+                              int clipX0, int clipY0, int clipX1, int clipY1) {
+        // The centre of pixel p is p + 0.5
+        int left = Math.max(clipX0, (int) Math.ceil(x - 0.5));
+        int right = Math.min(clipX1 - 1, (int) Math.floor(x + w - 0.5));
+        int top = Math.max(clipY0, (int) Math.ceil(y - 0.5));
+        int bottom = Math.min(clipY1 - 1, (int) Math.floor(y + h - 0.5));
+        fillRows(color, left, top, right, bottom);
+    }
+
+    // Paints the pixels whose centre is inside the circle, within the clip box
+    public void fillCircle(double cx, double cy, double r, int color,
+                           int clipX0, int clipY0, int clipX1, int clipY1) {
+        int top = Math.max(Math.max(clipY0, 0), (int) Math.ceil(cy - r - 0.5));
+        int bottom = Math.min(Math.min(clipY1, height) - 1, (int) Math.floor(cy + r - 0.5));
+        int minX = Math.max(clipX0, 0);
+        int maxX = Math.min(clipX1, width) - 1;
+        double r2 = r * r;
+        for (int y = top; y <= bottom; y++) {
+            double dy = y + 0.5 - cy;
+            // Half the width of the circle on this row; rounding can make r2 - dy * dy
+            // slightly negative on the top and bottom rows, and sqrt of that is NaN
+            double half = Math.sqrt(Math.max(0, r2 - dy * dy));
+            int left = Math.max(minX, (int) Math.ceil(cx - half - 0.5));
+            int right = Math.min(maxX, (int) Math.floor(cx + half - 0.5));
+            if (left <= right) {
+                int row = y * width;
+                Arrays.fill(pixels, row + left, row + right + 1, color);
+            }
+        }
+    }
+
+    // Fills the rows top..bottom from left to right (all included), cut to the canvas
+    private void fillRows(int color, int left, int top, int right, int bottom) {
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, width - 1);
+        bottom = Math.min(bottom, height - 1);
+        if (left > right) {
+            return;
+        }
+        for (int y = top; y <= bottom; y++) {
+            Arrays.fill(pixels, y * width + left, y * width + right + 1, color);
+        }
+    }
+
+    // A simple checksum of every pixel, to compare two pictures
+    public long checksum() {
+        long hash = 17;
+        for (int pixel : pixels) {
+            hash = hash * 31 + pixel;
+        }
+        return hash;
+    }
+}
+
+class Scene {
+    static final int TILE = 64;
+
+    private final Canvas canvas;
+    private final int background;
+    private final int tilesAcross;
+    private final int tilesDown;
+    private final BitSet dirty;
+
+    // Shapes by id; the grid's ids are the scene's ids
+    private final ShapeGrid grid = new ShapeGrid(TILE);
+    private int[] colors = new int[16];
+
+    Scene(Canvas canvas, int background) {
+        this.canvas = canvas;
+        this.background = background;
+        this.tilesAcross = (canvas.width() + TILE - 1) / TILE;
+        this.tilesDown = (canvas.height() + TILE - 1) / TILE;
+        this.dirty = new BitSet(tilesAcross * tilesDown);
+        dirty.set(0, tilesAcross * tilesDown); // nothing has been painted yet
+    }
+
+    Canvas canvas() {
+        return canvas;
+    }
+
+    // Adds a shape on top of the others and returns its id
+    int add(Shape shape, int color) {
+        int id = grid.insert(shape);
+        if (id == colors.length) {
+            colors = Arrays.copyOf(colors, id * 2);
+        }
+        colors[id] = color;
+        markDirty(shape.bounds());
+        return id;
+    }
+
+    // Replaces a shape, for example with a moved copy; it keeps its place in the order
+    boolean move(int id, Shape shape) {
+        Shape old = grid.get(id);
+        if (old == null) {
+            return false;
+        }
+        markDirty(old.bounds());
+        markDirty(shape.bounds());
+        return grid.update(id, shape);
+    }
+
+    boolean remove(int id) {
+        Shape old = grid.get(id);
+        if (old == null) {
+            return false;
+        }
+        markDirty(old.bounds());
+        return grid.remove(id);
+    }
+
+    // Number of tiles waiting to be repainted
+    int dirtyTiles() {
+        return dirty.cardinality();
+    }
+
+    // Marks every tile dirty, so the next render paints the whole canvas
+    void invalidate() {
+        dirty.set(0, tilesAcross * tilesDown);
+    }
+
+    // Repaints the dirty tiles on this thread; returns how many were painted
+    int render() {
+        int[] tiles = takeDirtyTiles();
+        int[][] shapesPerTile = shapesPerTile(tiles);
+        for (int i = 0; i < tiles.length; i++) {
+            paintTile(tiles[i], shapesPerTile[i]);
+        }
+        return tiles.length;
+    }
+
+    // Same as render(), with the tiles painted by the pool's threads.
+    // Finding the shapes of each tile stays on this thread (a ShapeGrid is not
+    // thread-safe); only the painting, which is most of the work, runs in parallel.
+    int render(ForkJoinPool pool) {
+        int[] tiles = takeDirtyTiles();
+        int[][] shapesPerTile = shapesPerTile(tiles);
+        pool.submit(() -> IntStream.range(0, tiles.length).parallel()
+                .forEach(i -> paintTile(tiles[i], shapesPerTile[i]))).join();
+        return tiles.length;
+    }
+
+    private int[] takeDirtyTiles() {
+        int[] tiles = dirty.stream().toArray();
+        dirty.clear();
+        return tiles;
+    }
+
+    // The ids of the shapes touching each tile, in the order they are painted
+    private int[][] shapesPerTile(int[] tiles) {
+        int[][] result = new int[tiles.length][];
+        for (int i = 0; i < tiles.length; i++) {
+            int x0 = tiles[i] % tilesAcross * TILE;
+            int y0 = tiles[i] / tilesAcross * TILE;
+            int[] ids = grid.queryRange(new Bounds(x0, y0, x0 + TILE, y0 + TILE));
+            Arrays.sort(ids);
+            result[i] = ids;
+        }
+        return result;
+    }
+
+    private void paintTile(int tile, int[] ids) {
+        int x0 = tile % tilesAcross * TILE;
+        int y0 = tile / tilesAcross * TILE;
+        int x1 = Math.min(x0 + TILE, canvas.width());
+        int y1 = Math.min(y0 + TILE, canvas.height());
+        canvas.fill(background, x0, y0, x1, y1);
+        for (int id : ids) {
+            grid.get(id).draw(canvas, colors[id], x0, y0, x1, y1);
+        }
+    }
+
+    // Marks the tiles under a box, one pixel wider on each side so the
+    // pixels at its edges are always included
+    private void markDirty(Bounds box) {
+        if (box.isEmpty()) {
+            return;
+        }
+        int column0 = tileIndex(box.minX - 1, tilesAcross);
+        int column1 = tileIndex(box.maxX + 1, tilesAcross);
+        int row0 = tileIndex(box.minY - 1, tilesDown);
+        int row1 = tileIndex(box.maxY + 1, tilesDown);
+        for (int row = row0; row <= row1; row++) {
+            dirty.set(row * tilesAcross + column0, row * tilesAcross + column1 + 1);
+        }
+    }
+
+    // The tile of a coordinate, kept inside the canvas
+    private static int tileIndex(double coordinate, int tiles) {
+        return (int) Math.max(0, Math.min(tiles - 1, Math.floor(coordinate / TILE)));
+    }
+}
+
+public class CanvasDemo {
+    public static void main(String[] args) {
+        // A small picture drawn straight into a canvas, printed as characters
+        Canvas small = new Canvas(24, 12);
+        new Rectangle(2, 2, 10, 6).draw(small, 1);
+        new Circle(15, 6, 5).draw(small, 2);
+        new Shape().draw(small, 3); // a plain Shape has no pixels
+        for (int y = 0; y < small.height(); y++) {
+            StringBuilder line = new StringBuilder();
+            for (int x = 0; x < small.width(); x++) {
+                line.append(" #o?".charAt(small.get(x, y)));
+            }
+            System.out.println(line);
+        }
+
+        // A big scene: 200,000 shapes on a 4096 x 4096 canvas
+        Random random = new Random(29);
+        Canvas canvas = new Canvas(4096, 4096);
+        Scene scene = new Scene(canvas, 0xFFFFFF);
+        int count = 200_000;
+        for (int i = 0; i < count; i++) {
+            double x = random.nextDouble() * 4096;
+            double y = random.nextDouble() * 4096;
+            Shape shape = random.nextBoolean()
+                    ? new Circle(x, y, 2 + random.nextDouble() * 10)
+                    : new Rectangle(x, y, 2 + random.nextDouble() * 20, 2 + random.nextDouble() * 20);
+            scene.add(shape, random.nextInt(0x1000000));
+        }
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        scene.render(pool);
+
+        // Move 100 shapes a little, then repaint only what changed
+        int[] moving = new int[100];
+        for (int i = 0; i < moving.length; i++) {
+            moving[i] = random.nextInt(count);
+        }
+        for (int id : moving) {
+            scene.move(id, new Circle(random.nextDouble() * 4096, random.nextDouble() * 4096, 8));
+        }
+        int tiles = scene.dirtyTiles();
+        scene.render(pool);
+        long incremental = canvas.checksum();
+        scene.invalidate();
+        scene.render();
+        System.out.println("After moving 100 shapes, " + tiles + " of " + 64 * 64
+                + " tiles repainted; same picture as a full redraw: " + (incremental == canvas.checksum()));
+
+        MicroBench.warmupRuns = 3;
+        MicroBench.measuredRuns = 5;
+        long full = MicroBench.bestNanos(() -> {
+            scene.invalidate();
+            return scene.render();
+        });
+        long fullParallel = MicroBench.bestNanos(() -> {
+            scene.invalidate();
+            return scene.render(pool);
+        });
+        long dirty = MicroBench.bestNanos(() -> {
+            for (int id : moving) {
+                scene.move(id, new Circle(random.nextDouble() * 4096, random.nextDouble() * 4096, 8));
+            }
+            return scene.render(pool);
+        });
+        System.out.println("Cores: " + pool.getParallelism());
+        MicroBench.report("full redraw", full, full);
+        MicroBench.report("full redraw, parallel tiles", fullParallel, full);
+        MicroBench.report("100 moves, dirty tiles", dirty, full);
+    }
+}
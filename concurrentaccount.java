@@ -0,0 +1,500 @@
+/* A BankAccount (Encapsulation.java) that many threads can use at once.
+
+   BankAccount.deposit does balance += amount: read the balance, add, write it
+   back. When two threads do that at the same time both read the same old
+   balance and one of the deposits is lost. withdraw is worse: two threads can
+   both see enough money and both take it, and the balance goes below zero.
+   Making every method synchronized fixes that, but then all threads queue up
+   behind one lock.
+
+   ConcurrentBankAccount keeps the balance as a whole number of cents in an
+   AtomicLong (no rounding errors like 0.1 + 0.2 either) and changes it with
+   compare-and-set (CAS): read the balance, work out the new one, and store it
+   only if the balance is still what was read; otherwise read again and retry.
+   No thread ever waits for a lock. A withdrawal checks "enough money?" and
+   takes the money in the same CAS, so the balance can never go negative.
+
+   Striped mode, for "hot" accounts (a fee or settlement account that every
+   thread pays into): even a CAS is slow when all cores hit the same balance,
+   because the cache line holding it has to travel from core to core and most
+   CASes fail and retry. In striped mode a deposit goes into one of several
+   cells instead, picked by the thread, and each cell sits on its own cache
+   line (like java.util.concurrent.atomic.LongAdder). The balance is the base
+   plus all cells. A withdrawal still takes money from the base only; when the
+   base is short it first moves the cells into the base (a drain). Drains hold
+   a lock, and so does a withdrawal that finds the base short: money that one
+   thread has taken out of a cell is never in flight while another decides
+   there is not enough. Every part is never negative, so neither is the balance.
+   The account switches into striped mode by itself when many deposit CASes
+   fail, and back out when only one thread has been depositing for a while:
+   every DRAIN_EVERY deposits into a cell the cells are drained, and a drain
+   that finds money in just one cell, QUIET_DRAINS times in a row, ends
+   striped mode. So a hot account that only takes deposits calms down too.
+   The cells are kept once created (a deposit that is just landing in a cell
+   is never lost), but in normal mode no new deposits go to them.
+
+   Amounts are rounded to whole cents. deposit and withdraw keep the rules and
+   the RingLog messages of BankAccount, and also return whether they worked.
+
+   Compile together with ringlog.java and microbench.java. */
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+class ConcurrentBankAccount {
+    // Cells are this many longs apart (128 bytes), so no two share a cache line
+    static final int STRIDE = 16;
+    // Failed deposit CASes (minus successful ones) before switching to striped mode
+    static final int CONTENTION_LIMIT = 64;
+    // Drains in a row that found at most one cell in use before switching back
+    static final int QUIET_DRAINS = 8;
+    // Deposits into one cell between drains that check whether striping still pays
+    static final int DRAIN_EVERY = 1024;
+
+    private volatile String accountHolderName;
+    // The whole balance in normal mode, the part withdrawals take from in striped mode
+    private final AtomicLong balanceCents = new AtomicLong();
+
+    // Striped mode; cells is created once and then kept
+    private volatile AtomicLongArray cells;
+    private volatile boolean striped;
+    private volatile boolean stripingAllowed = true;
+    // Held while money is moved out of the cells, and by a withdrawal that
+    // is about to say there is not enough
+    private final ReentrantLock drainLock = new ReentrantLock();
+    // Rough counters that only decide when to switch; lost updates do not matter
+    private int contention;
+    private int quietDrains;
+
+    public ConcurrentBankAccount(String accountHolderName, double initialBalance) {
+        this.accountHolderName = accountHolderName;
+        setBalance(initialBalance);
+    }
+
+    public String getAccountHolderName() {
+        return accountHolderName;
+    }
+
+    public void setAccountHolderName(String accountHolderName) {
+        this.accountHolderName = accountHolderName;
+    }
+
+    public double getBalance() {
+        return toDollars(getBalanceCents());
+    }
+
+    public long getBalanceCents() {
+        AtomicLongArray c = cells;
+        if (c == null) {
+            return balanceCents.get();
+        }
+        // No drain runs meanwhile, so no money is between a cell and the base
+        drainLock.lock();
+        try {
+            long total = balanceCents.get();
+            for (int i = 0; i < c.length(); i += STRIDE) {
+                total += c.get(i);
+            }
+            return total;
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    // Same rule as BankAccount: a negative balance becomes 0.
+    // Meant for setting up an account, not for one that other threads are using.
+    public void setBalance(double balance) {
+        long cents = balance >= 0 ? toCents(balance) : 0;
+        if (balance < 0) {
+            System.out.println("Balance must be non-negative. Setting balance to $0.0.");
+        }
+        AtomicLongArray c = cells;
+        if (c != null) {
+            for (int i = 0; i < c.length(); i += STRIDE) {
+                c.set(i, 0);
+            }
+        }
+        balanceCents.set(cents);
+    }
+
+    public boolean deposit(double amount) {
+        long cents = toCents(amount);
+        if (cents > 0) {
+            depositCents(cents);
+            RingLog.log("Successfully deposited: ${}", amount);
+            return true;
+        }
+        RingLog.log("Deposit amount must be positive.");
+        return false;
+    }
+
+    public boolean withdraw(double amount) {
+        long cents = toCents(amount);
+        if (cents <= 0) {
+            RingLog.log("Withdrawal amount must be positive.");
+            return false;
+        }
+        if (withdrawCents(cents)) {
+            RingLog.log("Successfully withdrew: ${}", amount);
+            return true;
+        }
+        RingLog.log("Insufficient balance.");
+        return false;
+    }
+
+    // Adds a positive number of cents. Throws ArithmeticException instead of
+    // letting the balance (in striped mode: the base or a cell) overflow.
+    void depositCents(long cents) {
+        if (striped) {
+            depositToCell(cents);
+            return;
+        }
+        long current;
+        long updated;
+        boolean failed = false;
+        while (true) {
+            current = balanceCents.get();
+            updated = Math.addExact(current, cents);
+            if (balanceCents.compareAndSet(current, updated)) {
+                break;
+            }
+            failed = true;
+            if (++contention > CONTENTION_LIMIT && stripingAllowed) {
+                enterStripedMode();
+                depositToCell(cents);
+                return;
+            }
+        }
+        if (!failed && contention > 0) {
+            contention--;
+        }
+    }
+
+    // Takes a positive number of cents if the balance has at least that much.
+    // The check and the update are one atomic step. In striped mode a short
+    // base is topped up from the cells first.
+    boolean withdrawCents(long cents) {
+        while (true) {
+            long current = balanceCents.get();
+            if (current >= cents) {
+                if (balanceCents.compareAndSet(current, current - cents)) {
+                    return true;
+                }
+            } else if (cells == null) {
+                return false;
+            } else {
+                return withdrawAfterDrain(cents);
+            }
+        }
+    }
+
+    // The slow path, with the drain lock held. Only the lock holder takes money
+    // out of the cells, and between drains the cells only grow. So when a drain
+    // finds every cell empty, they were already empty when the base was read
+    // just before it, and a base short of cents then means the balance was.
+    private boolean withdrawAfterDrain(long cents) {
+        drainLock.lock();
+        try {
+            while (true) {
+                long current = balanceCents.get();
+                if (current >= cents) {
+                    if (balanceCents.compareAndSet(current, current - cents)) {
+                        return true;
+                    }
+                } else if (drainCells() == 0) {
+                    return false;
+                }
+            }
+        } finally {
+            drainLock.unlock();
+        }
+    }
+
+    boolean isStriped() {
+        return striped;
+    }
+
+    // Turns automatic striping on or off (it is on by default)
+    void setStripingAllowed(boolean allowed) {
+        stripingAllowed = allowed;
+    }
+
+    void enterStripedMode() {
+        if (cells == null) {
+            synchronized (this) {
+                if (cells == null) {
+                    int processors = Runtime.getRuntime().availableProcessors();
+                    int count = Math.min(64, Integer.highestOneBit(Math.max(2, processors) * 2 - 1));
+                    cells = new AtomicLongArray(count * STRIDE);
+                }
+            }
+        }
+        quietDrains = 0;
+        striped = true;
+    }
+
+    void leaveStripedMode() {
+        striped = false;
+        contention = 0;
+        if (cells != null) {
+            drainLock.lock();
+            try {
+                drainCells();
+            } finally {
+                drainLock.unlock();
+            }
+        }
+    }
+
+    // Each thread starts at its own cell; when that CAS fails it moves on to the next.
+    // The long after each cell (on the same cache line) counts its deposits.
+    private void depositToCell(long cents) {
+        AtomicLongArray c = cells;
+        int mask = c.length() / STRIDE - 1;
+        int index = mix(Thread.currentThread().getId());
+        while (true) {
+            int slot = (index & mask) * STRIDE;
+            long current = c.get(slot);
+            if (c.compareAndSet(slot, current, Math.addExact(current, cents))) {
+                long deposits = c.get(slot + 1) + 1; // a rough count; lost updates do not matter
+                c.lazySet(slot + 1, deposits);
+                if (deposits % DRAIN_EVERY == 0 && drainLock.tryLock()) {
+                    try {
+                        drainCells(); // may end striped mode
+                    } finally {
+                        drainLock.unlock();
+                    }
+                }
+                return;
+            }
+            index++;
+        }
+    }
+
+    // Moves every cell into the base and returns how much was moved; called
+    // with the drain lock held. Also the place where striped mode ends: if only
+    // one cell had money in it for QUIET_DRAINS drains in a row, only one
+    // thread has been depositing.
+    private long drainCells() {
+        AtomicLongArray c = cells;
+        long moved = 0;
+        int used = 0;
+        for (int i = 0; i < c.length(); i += STRIDE) {
+            long value = c.getAndSet(i, 0);
+            if (value != 0) {
+                moved += value;
+                used++;
+            }
+        }
+        if (moved != 0) {
+            balanceCents.addAndGet(moved);
+        }
+        if (striped) {
+            quietDrains = used <= 1 ? quietDrains + 1 : 0;
+            if (quietDrains >= QUIET_DRAINS) {
+                striped = false;
+                contention = 0;
+            }
+        }
+        return moved;
+    }
+
+    private static int mix(long threadId) {
+        long h = threadId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static long toCents(double dollars) {
+        return Math.round(dollars * 100);
+    }
+
+    static double toDollars(long cents) {
+        return cents / 100.0;
+    }
+}
+
+// The same account with every method synchronized, for comparison
+class LockedBankAccount {
+    private long balanceCents;
+
+    LockedBankAccount(long balanceCents) {
+        this.balanceCents = balanceCents;
+    }
+
+    synchronized long getBalanceCents() {
+        return balanceCents;
+    }
+
+    synchronized void depositCents(long cents) {
+        balanceCents = Math.addExact(balanceCents, cents);
+    }
+
+    synchronized boolean withdrawCents(long cents) {
+        if (balanceCents < cents) {
+            return false;
+        }
+        balanceCents -= cents;
+        return true;
+    }
+}
+
+public class ConcurrentAccountDemo {
+    static final int OPERATIONS = 1_000_000;
+    static final int QUIET_DEPOSITS = ConcurrentBankAccount.DRAIN_EVERY * (ConcurrentBankAccount.QUIET_DRAINS + 1);
+
+    public static void main(String[] args) {
+        ConcurrentBankAccount account = new ConcurrentBankAccount("Jane Smith", 1000.0);
+        account.deposit(200.0);
+        account.withdraw(150.0);
+        System.out.println("Updated Balance: $" + account.getBalance());
+        System.out.println("Withdraw $2000: " + account.withdraw(2000.0));
+        System.out.println("Deposit -$50: " + account.deposit(-50.0));
+
+        stressTest(8, false);
+        stressTest(8, true);
+
+        // Throughput on one shared account as threads are added
+        System.out.println("Cores: " + Runtime.getRuntime().availableProcessors());
+        MicroBench.warmupRuns = 3;
+        MicroBench.measuredRuns = 5;
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            int n = threads;
+            ConcurrentBankAccount cas = new ConcurrentBankAccount("cas", 0);
+            LockedBankAccount locked = new LockedBankAccount(0);
+            long casNanos = MicroBench.bestNanos(() -> runThreads(n, () -> {
+                long done = 0;
+                for (int i = 0; i < OPERATIONS / n; i++) {
+                    if ((i & 1) == 0) {
+                        cas.depositCents(100);
+                        done++;
+                    } else if (cas.withdrawCents(50)) {
+                        done++;
+                    }
+                }
+                return done;
+            }));
+            long lockedNanos = MicroBench.bestNanos(() -> runThreads(n, () -> {
+                long done = 0;
+                for (int i = 0; i < OPERATIONS / n; i++) {
+                    if ((i & 1) == 0) {
+                        locked.depositCents(100);
+                        done++;
+                    } else if (locked.withdrawCents(50)) {
+                        done++;
+                    }
+                }
+                return done;
+            }));
+            System.out.printf("%d threads: CAS %6.1f M ops/s, synchronized %6.1f M ops/s%n", n,
+                    OPERATIONS * 1e3 / casNanos, OPERATIONS * 1e3 / lockedNanos);
+        }
+
+        // A hot account: every thread only deposits
+        System.out.println("Hot account, deposits only:");
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            int n = threads;
+            ConcurrentBankAccount single = new ConcurrentBankAccount("single", 0);
+            single.setStripingAllowed(false);
+            ConcurrentBankAccount adaptive = new ConcurrentBankAccount("adaptive", 0);
+            ConcurrentBankAccount striped = new ConcurrentBankAccount("striped", 0);
+            striped.enterStripedMode();
+            long singleNanos = MicroBench.bestNanos(() -> runThreads(n, () -> deposits(single, n)));
+            long adaptiveNanos = MicroBench.bestNanos(() -> runThreads(n, () -> deposits(adaptive, n)));
+            long stripedNanos = MicroBench.bestNanos(() -> runThreads(n, () -> deposits(striped, n)));
+            System.out.printf("%d threads: one balance %6.1f, adaptive %6.1f (striped now: %b), "
+                    + "started striped %6.1f M ops/s%n", n, OPERATIONS * 1e3 / singleNanos,
+                    OPERATIONS * 1e3 / adaptiveNanos, adaptive.isStriped(), OPERATIONS * 1e3 / stripedNanos);
+        }
+
+        // Once only one thread deposits, the account goes back to one balance,
+        // even when nobody withdraws
+        ConcurrentBankAccount calm = new ConcurrentBankAccount("calm", 0);
+        calm.enterStripedMode();
+        for (int i = 0; i < QUIET_DEPOSITS; i++) {
+            calm.depositCents(100);
+        }
+        System.out.println("Striped after " + QUIET_DEPOSITS + " deposits from one thread: " + calm.isStriped()
+                + ", balance " + calm.getBalanceCents() + " cents");
+    }
+
+    static long deposits(ConcurrentBankAccount account, int threads) {
+        for (int i = 0; i < OPERATIONS / threads; i++) {
+            account.depositCents(1);
+        }
+        return OPERATIONS / threads;
+    }
+
+    // Many threads deposit random amounts on one account and take each one
+    // straight back. The money a thread takes back is always there (nobody
+    // else withdraws it), so every refused withdrawal is a wrong "Insufficient
+    // balance". Meanwhile another thread keeps checking that the balance is
+    // never negative, also while withdrawals drain the cells. At the end the
+    // balance must be back at the start.
+    static void stressTest(int threads, boolean striped) {
+        ConcurrentBankAccount account = new ConcurrentBankAccount("stress", 0);
+        if (striped) {
+            account.enterStripedMode();
+        }
+        long start = account.getBalanceCents();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicBoolean negativeSeen = new AtomicBoolean();
+        Thread watcher = new Thread(() -> {
+            while (running.get()) {
+                if (account.getBalanceCents() < 0) {
+                    negativeSeen.set(true);
+                }
+            }
+        });
+        watcher.start();
+        long refused = runThreads(threads, () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long wrong = 0;
+            for (int i = 0; i < OPERATIONS / threads; i++) {
+                long cents = 1 + random.nextInt(1000);
+                account.depositCents(cents);
+                while (!account.withdrawCents(cents)) {
+                    wrong++; // try again, so the balance still ends where it started
+                }
+            }
+            return wrong;
+        });
+        running.set(false);
+        try {
+            watcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        System.out.println("Stress test, " + threads + " threads" + (striped ? ", striped" : "")
+                + ": balance " + account.getBalanceCents() + " cents, expected " + start
+                + ", correct: " + (account.getBalanceCents() == start)
+                + ", ever negative: " + negativeSeen.get()
+                + ", wrongly refused withdrawals: " + refused);
+    }
+
+    // Runs the work on n threads at once and adds up what they return
+    static long runThreads(int n, LongSupplier work) {
+        long[] results = new long[n];
+        Thread[] threads = new Thread[n];
+        for (int t = 0; t < n; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> results[id] = work.getAsLong());
+            threads[t].start();
+        }
+        long total = 0;
+        try {
+            for (int t = 0; t < n; t++) {
+                threads[t].join();
+                total += results[t];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        return total;
+    }
+}
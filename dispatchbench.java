@@ -0,0 +1,341 @@
+/* How much does dynamic method dispatch (Dispatchmethod.java) really cost?
+
+   A call through a parent reference, like animal.sound(), is compiled by the
+   JIT according to how many different classes it has seen at that call site:
+     monomorphic  one class: the call is inlined, as cheap as a direct call
+     bimorphic    two classes: inlined behind a quick type check
+     megamorphic  three or more: a real virtual call through the method table,
+                  which cannot be inlined
+   Overloaded methods (methodoverloading.java) are picked by the compiler, so
+   they never pay any of this.
+
+   This program measures the Calculator hierarchy from inherit.java, Animal/Dog/Cat
+   from Dispatchmethod.java and Shape/Circle/Rectangle from Polymorphosism.java,
+   copied here as real classes, in two versions:
+     - with the println side effects (to a stream that throws the text away)
+     - with the printing replaced by returning a value that is consumed, like
+       JMH's Blackhole, so only the dispatch itself is measured
+   Every case has its own loop (its own lambda), so the call sites do not share
+   type profiles.
+
+   Compile together with methodoverloading.java, intpower.java and microbench.java. */
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+class Hierarchies {
+    // println goes here: the formatting and locking still happen, the text is discarded
+    static final PrintStream OUT = new PrintStream(OutputStream.nullOutputStream());
+
+    // ---- inherit.java ----
+    static class Calculator {
+        public int calculate(int a, int b) {
+            OUT.println("Performing addition in Calculator");
+            return a + b;
+        }
+
+        public int calculateQuietly(int a, int b) {
+            return a + b;
+        }
+    }
+
+    static class AdvancedCalculator extends Calculator {
+        @Override
+        public int calculate(int a, int b) {
+            OUT.println("Performing multiplication in AdvancedCalculator");
+            return a * b;
+        }
+
+        @Override
+        public int calculateQuietly(int a, int b) {
+            return a * b;
+        }
+    }
+
+    static class ScientificCalculator extends Calculator {
+        @Override
+        public int calculate(int a, int b) {
+            OUT.println("Performing power calculation in ScientificCalculator");
+            return IntPower.powExact(a, b);
+        }
+
+        @Override
+        public int calculateQuietly(int a, int b) {
+            return IntPower.powExact(a, b);
+        }
+    }
+
+    // ---- Dispatchmethod.java ----
+    static class Animal {
+        public void sound() {
+            OUT.println("Animal makes a sound");
+        }
+
+        public String soundQuietly() {
+            return "Animal makes a sound";
+        }
+    }
+
+    static class Dog extends Animal {
+        @Override
+        public void sound() {
+            OUT.println("Dog barks");
+        }
+
+        @Override
+        public String soundQuietly() {
+            return "Dog barks";
+        }
+    }
+
+    static class Cat extends Animal {
+        @Override
+        public void sound() {
+            OUT.println("Cat meows");
+        }
+
+        @Override
+        public String soundQuietly() {
+            return "Cat meows";
+        }
+    }
+
+    // ---- Polymorphosism.java ----
+    static class Shape {
+        public void draw() {
+            OUT.println("Drawing a shape");
+        }
+
+        public String drawQuietly() {
+            return "Drawing a shape";
+        }
+    }
+
+    static class Circle extends Shape {
+        @Override
+        public void draw() {
+            OUT.println("Drawing a circle");
+        }
+
+        @Override
+        public String drawQuietly() {
+            return "Drawing a circle";
+        }
+    }
+
+    static class Rectangle extends Shape {
+        @Override
+        public void draw() {
+            OUT.println("Drawing a rectangle");
+        }
+
+        @Override
+        public String drawQuietly() {
+            return "Drawing a rectangle";
+        }
+    }
+}
+
+public class DispatchBenchmark {
+    static final int RECEIVERS = 1024;
+    static final int ROUNDS = 1000;
+    static final long CALLS = (long) RECEIVERS * ROUNDS;
+    // The println cases make 1/100 of the calls
+    static final int PRINT_ROUNDS = ROUNDS / 100;
+    static final long PRINT_CALLS = (long) RECEIVERS * PRINT_ROUNDS;
+
+    // Fills an array by cycling through the given objects
+    @SafeVarargs
+    static <T> T[] cycle(T[] array, T... kinds) {
+        for (int i = 0; i < array.length; i++) {
+            array[i] = kinds[i % kinds.length];
+        }
+        return array;
+    }
+
+    public static void main(String[] args) {
+        Hierarchies.Calculator calc = new Hierarchies.Calculator();
+        Hierarchies.Calculator adv = new Hierarchies.AdvancedCalculator();
+        Hierarchies.Calculator sci = new Hierarchies.ScientificCalculator();
+        Hierarchies.Calculator[] calcMono = cycle(new Hierarchies.Calculator[RECEIVERS], calc);
+        Hierarchies.Calculator[] calcBi = cycle(new Hierarchies.Calculator[RECEIVERS], calc, adv);
+        Hierarchies.Calculator[] calcMega = cycle(new Hierarchies.Calculator[RECEIVERS], calc, adv, sci);
+
+        Hierarchies.Animal animal = new Hierarchies.Animal();
+        Hierarchies.Animal dog = new Hierarchies.Dog();
+        Hierarchies.Animal cat = new Hierarchies.Cat();
+        Hierarchies.Animal[] animalMono = cycle(new Hierarchies.Animal[RECEIVERS], dog);
+        Hierarchies.Animal[] animalBi = cycle(new Hierarchies.Animal[RECEIVERS], dog, cat);
+        Hierarchies.Animal[] animalMega = cycle(new Hierarchies.Animal[RECEIVERS], animal, dog, cat);
+
+        Hierarchies.Shape shape = new Hierarchies.Shape();
+        Hierarchies.Shape circle = new Hierarchies.Circle();
+        Hierarchies.Shape rectangle = new Hierarchies.Rectangle();
+        Hierarchies.Shape[] shapeMono = cycle(new Hierarchies.Shape[RECEIVERS], circle);
+        Hierarchies.Shape[] shapeBi = cycle(new Hierarchies.Shape[RECEIVERS], circle, rectangle);
+        Hierarchies.Shape[] shapeMega = cycle(new Hierarchies.Shape[RECEIVERS], shape, circle, rectangle);
+
+        Calculator overloaded = new Calculator(); // from methodoverloading.java
+        // Inputs the JIT cannot know in advance, so it cannot fold the additions away
+        int[] operands = new int[RECEIVERS];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < operands.length; i++) {
+            operands[i] = random.nextInt(1000);
+        }
+
+        System.out.println("Times per call; x = how many times slower than add(int, int)");
+
+        System.out.println("-- overload resolution (chosen at compile time) --");
+        // The baseline and the Calculator cases read their first operand from
+        // the same array and sum every result, so the loops differ only in the
+        // call; with constant operands the JIT could fold the whole loop away
+        double base = run("add(int, int)", CALLS, 0, () -> {
+            long total = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                for (int i = 0; i < RECEIVERS; i++) {
+                    total += overloaded.add(operands[i], 2);
+                }
+            }
+            return total;
+        });
+        run("add(double, int)", CALLS, base, () -> {
+            double total = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                for (int i = 0; i < RECEIVERS; i++) {
+                    total += overloaded.add(0.5 * operands[i], 2);
+                }
+            }
+            return (long) total;
+        });
+
+        System.out.println("-- Calculator.calculate, value consumed --");
+        run("monomorphic", CALLS, base, () -> {
+            long total = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                for (int i = 0; i < RECEIVERS; i++) {
+                    total += calcMono[i].calculateQuietly(operands[i], 2);
+                }
+            }
+            return total;
+        });
+        run("bimorphic", CALLS, base, () -> {
+            long total = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                for (int i = 0; i < RECEIVERS; i++) {
+                    total += calcBi[i].calculateQuietly(operands[i], 2);
+                }
+            }
+            return total;
+        });
+        run("megamorphic", CALLS, base, () -> {
+            long total = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                for (int i = 0; i < RECEIVERS; i++) {
+                    total += calcMega[i].calculateQuietly(operands[i], 2);
+                }
+            }
+            return total;
+        });
+
+        System.out.println("-- Animal.sound, value consumed --");
+        run("monomorphic", CALLS, base, () -> {
+            for (int r = 0; r < ROUNDS; r++) {
+                for (Hierarchies.Animal a : animalMono) {
+                    MicroBench.consume(a.soundQuietly());
+                }
+            }
+            return 0;
+        });
+        run("bimorphic", CALLS, base, () -> {
+            for (int r = 0; r < ROUNDS; r++) {
+                for (Hierarchies.Animal a : animalBi) {
+                    MicroBench.consume(a.soundQuietly());
+                }
+            }
+            return 0;
+        });
+        run("megamorphic", CALLS, base, () -> {
+            for (int r = 0; r < ROUNDS; r++) {
+                for (Hierarchies.Animal a : animalMega) {
+                    MicroBench.consume(a.soundQuietly());
+                }
+            }
+            return 0;
+        });
+
+        System.out.println("-- Shape.draw, value consumed --");
+        run("monomorphic", CALLS, base, () -> {
+            for (int r = 0; r < ROUNDS; r++) {
+                for (Hierarchies.Shape s : shapeMono) {
+                    MicroBench.consume(s.drawQuietly());
+                }
+            }
+            return 0;
+        });
+        run("bimorphic", CALLS, base, () -> {
+            for (int r = 0; r < ROUNDS; r++) {
+                for (Hierarchies.Shape s : shapeBi) {
+                    MicroBench.consume(s.drawQuietly());
+                }
+            }
+            return 0;
+        });
+        run("megamorphic", CALLS, base, () -> {
+            for (int r = 0; r < ROUNDS; r++) {
+                for (Hierarchies.Shape s : shapeMega) {
+                    MicroBench.consume(s.drawQuietly());
+                }
+            }
+            return 0;
+        });
+
+        // With the println calls the printing dominates, whatever the dispatch.
+        // Fewer rounds here, because every call formats and writes a line.
+        System.out.println("-- with println (1/100 of the calls) --");
+        run("Calculator monomorphic", PRINT_CALLS, base, () -> {
+            long total = 0;
+            for (int r = 0; r < PRINT_ROUNDS; r++) {
+                for (Hierarchies.Calculator c : calcMono) {
+                    total += c.calculate(r, 2);
+                }
+            }
+            return total;
+        });
+        run("Calculator megamorphic", PRINT_CALLS, base, () -> {
+            long total = 0;
+            for (int r = 0; r < PRINT_ROUNDS; r++) {
+                for (Hierarchies.Calculator c : calcMega) {
+                    total += c.calculate(r, 2);
+                }
+            }
+            return total;
+        });
+        run("Animal megamorphic", PRINT_CALLS, base, () -> {
+            for (int r = 0; r < PRINT_ROUNDS; r++) {
+                for (Hierarchies.Animal a : animalMega) {
+                    a.sound();
+                }
+            }
+            return 0;
+        });
+        run("Shape megamorphic", PRINT_CALLS, base, () -> {
+            for (int r = 0; r < PRINT_ROUNDS; r++) {
+                for (Hierarchies.Shape s : shapeMega) {
+                    s.draw();
+                }
+            }
+            return 0;
+        });
+    }
+
+    // Times one case that makes the given number of calls and prints the cost
+    // of one call; the first case (baseline 0) becomes the baseline of the rest
+    static double run(String label, long calls, double baseline, LongSupplier work) {
+        double perCall = (double) MicroBench.bestNanos(work) / calls;
+        System.out.printf("%-28s %8.2f ns   x%.1f%n",
+                label, perCall, perCall / (baseline == 0 ? perCall : baseline));
+        return perCall;
+    }
+}
@@ -0,0 +1,405 @@
+/* Formulas compiled to method handles.
+
+   A formula such as "power(x, 2) + 3 * y - z / 4" is parsed once and turned into
+   a chain of MethodHandles: small, typed references to methods that the JVM
+   can combine. Each operation of the formula becomes a handle to one of the
+   static methods at the top of CompiledExpression (add, subtract, multiply,
+   divide, power). They work on doubles and follow the rules of the Calculator
+   operations in inherit.java, which is documentation and is not compiled.
+   The handles are glued together so that evaluating the formula is a single
+   invokeExact call, with no tree of objects to walk.
+
+   Compiled formulas are cached by their text. The cache holds at most
+   MAX_CACHED of them; once it is full, new formulas are compiled every time
+   instead of being added, so callers that build formula text on the fly
+   cannot fill up the memory.
+
+   When the handle (CompiledExpression.handle()) is kept in a static final
+   field, the JIT treats the whole chain as a constant and inlines it, so an
+   evaluation costs about the same as the hand-written Java formula.
+   evaluate() is the convenient way in; it goes through an instance field,
+   which the JIT does not treat as a constant, so it is somewhat slower.
+
+   Syntax:  numbers, variables, + - * / ^ (power, right-associative), unary minus,
+            parentheses, and add(a, b), subtract(a, b), multiply(a, b),
+            divide(a, b), power(a, b). Division by zero gives 0.0, the same as
+            AdvancedCalculator.divide. */
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class CompiledExpression {
+    // The operations the formulas are built from
+    static double add(double a, double b) {
+        return a + b;
+    }
+
+    static double subtract(double a, double b) {
+        return a - b;
+    }
+
+    static double multiply(double a, double b) {
+        return a * b;
+    }
+
+    static double divide(double a, double b) {
+        return b != 0 ? a / b : 0.0;
+    }
+
+    static double power(double base, double exponent) {
+        return Math.pow(base, exponent);
+    }
+
+    static double negate(double a) {
+        return -a;
+    }
+
+    static final int MAX_CACHED = 1024;
+
+    // Compiled expressions by source text and variable names
+    private static final Map<String, CompiledExpression> CACHE = new ConcurrentHashMap<>();
+
+    private final String source;
+    private final List<String> variables;
+    private final MethodHandle handle; // (double[]) -> double
+
+    private CompiledExpression(String source, List<String> variables, MethodHandle handle) {
+        this.source = source;
+        this.variables = variables;
+        this.handle = handle;
+    }
+
+    // Compiles a formula; the values passed to evaluate() are matched to the
+    // variables in the order they are listed here
+    static CompiledExpression compile(String source, String... variables) {
+        String key = source + '\u0000' + String.join(",", variables);
+        CompiledExpression cached = CACHE.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        if (CACHE.size() >= MAX_CACHED) {
+            return build(source, variables);
+        }
+        return CACHE.computeIfAbsent(key, k -> build(source, variables));
+    }
+
+    private static CompiledExpression build(String source, String... variables) {
+        List<String> names = List.of(variables);
+        return new CompiledExpression(source, names, new Parser(source, names).parse());
+    }
+
+    static int cacheSize() {
+        return CACHE.size();
+    }
+
+    double evaluate(double... values) {
+        if (values.length != variables.size()) {
+            throw new IllegalArgumentException("Expected " + variables.size()
+                    + " values for " + variables + " but got " + values.length);
+        }
+        try {
+            return (double) handle.invokeExact(values);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Evaluating " + source + " failed", t);
+        }
+    }
+
+    // The underlying (double[]) -> double handle, for callers that want to
+    // store it in their own static final field
+    MethodHandle handle() {
+        return handle;
+    }
+
+    List<String> variables() {
+        return variables;
+    }
+
+    @Override
+    public String toString() {
+        return source + " with " + variables;
+    }
+
+    // A recursive-descent parser that builds the handle while it reads the text.
+    //   expression := term (('+' | '-') term)*
+    //   term       := unary (('*' | '/') unary)*
+    //   unary      := '-' unary | power
+    //   power      := primary ('^' unary)?
+    //   primary    := number | variable | name '(' expression ',' expression ')'
+    //               | '(' expression ')'
+    private static class Parser {
+        private static final MethodType BINARY =
+                MethodType.methodType(double.class, double.class, double.class);
+        private static final MethodType ROOT =
+                MethodType.methodType(double.class, double[].class);
+        private static final MethodHandle ELEMENT =
+                MethodHandles.arrayElementGetter(double[].class);
+        private static final Map<String, MethodHandle> OPERATIONS;
+        private static final MethodHandle NEGATE;
+
+        static {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                OPERATIONS = Map.of(
+                        "add", lookup.findStatic(CompiledExpression.class, "add", BINARY),
+                        "subtract", lookup.findStatic(CompiledExpression.class, "subtract", BINARY),
+                        "multiply", lookup.findStatic(CompiledExpression.class, "multiply", BINARY),
+                        "divide", lookup.findStatic(CompiledExpression.class, "divide", BINARY),
+                        "power", lookup.findStatic(CompiledExpression.class, "power", BINARY));
+                NEGATE = lookup.findStatic(CompiledExpression.class, "negate",
+                        MethodType.methodType(double.class, double.class));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final String text;
+        private final List<String> variables;
+        private int pos;
+
+        Parser(String text, List<String> variables) {
+            this.text = text;
+            this.variables = variables;
+        }
+
+        MethodHandle parse() {
+            Node result = expression();
+            skipSpaces();
+            if (pos < text.length()) {
+                throw error("Unexpected '" + text.charAt(pos) + "'");
+            }
+            return result.handle;
+        }
+
+        private Node expression() {
+            Node left = term();
+            while (true) {
+                if (eat('+')) {
+                    left = binary("add", left, term());
+                } else if (eat('-')) {
+                    left = binary("subtract", left, term());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Node term() {
+            Node left = unary();
+            while (true) {
+                if (eat('*')) {
+                    left = binary("multiply", left, unary());
+                } else if (eat('/')) {
+                    left = binary("divide", left, unary());
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Node unary() {
+            if (eat('-')) {
+                Node operand = unary();
+                if (operand.isConstant()) {
+                    return Node.constant(-operand.value);
+                }
+                return new Node(MethodHandles.filterReturnValue(operand.handle, NEGATE));
+            }
+            return power();
+        }
+
+        private Node power() {
+            Node base = primary();
+            if (eat('^')) {
+                return binary("power", base, unary());
+            }
+            return base;
+        }
+
+        private Node primary() {
+            skipSpaces();
+            if (pos >= text.length()) {
+                throw error("Unexpected end of formula");
+            }
+            char c = text.charAt(pos);
+            if (c == '(') {
+                pos++;
+                Node inner = expression();
+                expect(')');
+                return inner;
+            }
+            if (Character.isDigit(c) || c == '.') {
+                int start = pos;
+                while (pos < text.length()
+                        && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) {
+                    pos++;
+                }
+                try {
+                    return Node.constant(Double.parseDouble(text.substring(start, pos)));
+                } catch (NumberFormatException e) {
+                    throw error("Bad number '" + text.substring(start, pos) + "'");
+                }
+            }
+            if (Character.isLetter(c)) {
+                int start = pos;
+                while (pos < text.length() && Character.isLetterOrDigit(text.charAt(pos))) {
+                    pos++;
+                }
+                String name = text.substring(start, pos);
+                if (eat('(')) {
+                    if (!OPERATIONS.containsKey(name)) {
+                        throw error("Unknown operation '" + name + "'");
+                    }
+                    Node first = expression();
+                    expect(',');
+                    Node second = expression();
+                    expect(')');
+                    return binary(name, first, second);
+                }
+                int index = variables.indexOf(name);
+                if (index < 0) {
+                    throw error("Unknown variable '" + name + "'");
+                }
+                return new Node(MethodHandles.insertArguments(ELEMENT, 1, index));
+            }
+            throw error("Unexpected '" + c + "'");
+        }
+
+        // op(left(values), right(values)) as a single (double[]) -> double handle;
+        // two constants are folded right away
+        private Node binary(String name, Node left, Node right) {
+            MethodHandle op = OPERATIONS.get(name);
+            if (left.isConstant() && right.isConstant()) {
+                try {
+                    return Node.constant((double) op.invokeExact(left.value, right.value));
+                } catch (Throwable t) {
+                    throw new IllegalStateException(t);
+                }
+            }
+            MethodHandle both = MethodHandles.filterArguments(op, 0, left.handle, right.handle);
+            return new Node(MethodHandles.permuteArguments(both, ROOT, 0, 0));
+        }
+
+        private boolean eat(char expected) {
+            skipSpaces();
+            if (pos < text.length() && text.charAt(pos) == expected) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char expected) {
+            if (!eat(expected)) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        private void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + pos + " in: " + text);
+        }
+    }
+
+    // A parsed piece of the formula; constants remember their value for folding
+    private static class Node {
+        final MethodHandle handle;
+        final double value;
+        final boolean constant;
+
+        Node(MethodHandle handle) {
+            this(handle, 0.0, false);
+        }
+
+        private Node(MethodHandle handle, double value, boolean constant) {
+            this.handle = handle;
+            this.value = value;
+            this.constant = constant;
+        }
+
+        static Node constant(double value) {
+            MethodHandle handle = MethodHandles.dropArguments(
+                    MethodHandles.constant(double.class, value), 0, double[].class);
+            return new Node(handle, value, true);
+        }
+
+        boolean isConstant() {
+            return constant;
+        }
+    }
+}
+
+public class ExpressionDemo {
+    static final CompiledExpression FORMULA =
+            CompiledExpression.compile("power(x, 2) + 3 * y - z / 4", "x", "y", "z");
+
+    // static final, so the JIT can inline the whole compiled chain
+    static final MethodHandle FORMULA_HANDLE = FORMULA.handle();
+
+    static double handWritten(double x, double y, double z) {
+        return Math.pow(x, 2) + 3 * y - (z != 0 ? z / 4 : 0.0);
+    }
+
+    public static void main(String[] args) {
+        System.out.println(FORMULA + " at (2, 5, 8) = " + FORMULA.evaluate(2, 5, 8));
+        System.out.println("Hand-written: " + handWritten(2, 5, 8));
+
+        // The same text compiles only once
+        CompiledExpression again = CompiledExpression.compile("power(x, 2) + 3 * y - z / 4", "x", "y", "z");
+        System.out.println("Cached: " + (again == FORMULA) + ", cache size " + CompiledExpression.cacheSize());
+
+        System.out.println("-(2 + 3) ^ 2 = " + CompiledExpression.compile("-(2 + 3) ^ 2").evaluate());
+        System.out.println("divide(a, 0) = " + CompiledExpression.compile("divide(a, 0)", "a").evaluate(7));
+
+        // Formulas built from data stop being cached once the cache is full
+        for (int i = 0; i < 2 * CompiledExpression.MAX_CACHED; i++) {
+            CompiledExpression.compile("x + " + i, "x");
+        }
+        System.out.println("After " + 2 * CompiledExpression.MAX_CACHED + " generated formulas, cache size "
+                + CompiledExpression.cacheSize());
+
+        double[] values = new double[3];
+        long compiled = MicroBench.bestNanos(() -> {
+            double total = 0;
+            for (int i = 0; i < 1_000_000; i++) {
+                values[0] = i;
+                values[1] = i + 1;
+                values[2] = i + 2;
+                total += FORMULA.evaluate(values);
+            }
+            return total;
+        });
+        long inlined = MicroBench.bestNanos(() -> {
+            double total = 0;
+            try {
+                for (int i = 0; i < 1_000_000; i++) {
+                    values[0] = i;
+                    values[1] = i + 1;
+                    values[2] = i + 2;
+                    total += (double) FORMULA_HANDLE.invokeExact(values);
+                }
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+            return total;
+        });
+        long direct = MicroBench.bestNanos(() -> {
+            double total = 0;
+            for (int i = 0; i < 1_000_000; i++) {
+                total += handWritten(i, i + 1, i + 2);
+            }
+            return total;
+        });
+        MicroBench.report("hand-written, 1M calls", direct, direct);
+        MicroBench.report("static final handle, 1M", inlined, direct);
+        MicroBench.report("evaluate(), 1M calls", compiled, direct);
+    }
+}
@@ -76,10 +76,21 @@ class AdvancedCalculator extends Calculator {
         if (b != 0) {
             return (double) a / b;
         } else {
-            System.out.println("Division by zero is not allowed.");
+            RingLog.log("Division by zero is not allowed.");
             return 0.0;
         }
     }
+
+    // Batch division of a whole column by one divisor (see intdivisor.java).
+    // Nothing is printed: a zero divisor makes it return false and fill out with 0.0.
+    public boolean divide(int[] a, int b, double[] out) {
+        return IntDivisor.divide(a, b, out);
+    }
+
+    // Whole-number quotients, using a precomputed multiply-and-shift instead of division
+    public boolean divide(int[] a, int b, int[] out) {
+        return IntDivisor.divide(a, b, out);
+    }
 }
 
 public class InheritanceDemo {
@@ -129,6 +140,11 @@ class ScientificCalculator extends AdvancedCalculator {
     public double power(double base, double exponent) {
         return Math.pow(base, exponent);
     }
+
+    // Exact power of whole numbers (see intpower.java); throws on overflow
+    public long power(int base, int exponent) {
+        return IntPower.powExact((long) base, exponent);
+    }
 }
 
 public class InheritanceDemo {
@@ -147,9 +163,11 @@ public class InheritanceDemo {
 ```
 Addition: 15
 Multiplication: 50
-Power: 8.0
+Power: 8
 ```
 
+`sciCalc.power(2, 3)` passes two `int`s, so it calls the exact `power(int, int)`; `sciCalc.power(2.0, 3.0)` would still use `Math.pow` and print `8.0`.
+
 ---
 
 #### **3. Using `super` Keyword**
@@ -397,7 +415,7 @@ The code will still work, but it may be less readable or clear in contexts where
 class Calculator {
     // Method for addition
     public int calculate(int a, int b) {
-        System.out.println("Performing addition in Calculator");
+        RingLog.log("Performing addition in Calculator");
         return a + b;
     }
 }
@@ -407,7 +425,7 @@ class AdvancedCalculator extends Calculator {
     // Overriding the calculate method
     @Override
     public int calculate(int a, int b) {
-        System.out.println("Performing multiplication in AdvancedCalculator");
+        RingLog.log("Performing multiplication in AdvancedCalculator");
         return a * b;
     }
 }
@@ -417,8 +435,8 @@ class ScientificCalculator extends Calculator {
     // Overriding the calculate method
     @Override
     public int calculate(int a, int b) {
-        System.out.println("Performing power calculation in ScientificCalculator");
-        return (int) Math.pow(a, b);
+        RingLog.log("Performing power calculation in ScientificCalculator");
+        return IntPower.powExact(a, b); // exact; throws ArithmeticException instead of overflowing
     }
 }
 
@@ -452,6 +470,7 @@ public class MethodOverridingDemo {
 
 3. **Overriding in `ScientificCalculator`**:
    - The `calculate` method is overridden to compute the power of two numbers.
+   - It uses `IntPower.powExact` (intpower.java) rather than `(int) Math.pow`, which would silently give a wrong answer when the power does not fit in an `int`.
 
 4. **Polymorphism**:
    - The `calculate` method behaves differently depending on the object type (`basicCalc`, `advCalc`, or `sciCalc`).
@@ -459,6 +478,7 @@ public class MethodOverridingDemo {
 ---
 
 #### **Output**
+The "Performing ..." lines go through `RingLog` (ringlog.java), which is off by default; they appear when the program runs with `-Dringlog=sync` or `-Dringlog=async`.
 ```
 Performing addition in Calculator
 Result (Basic Calculator): 8
@@ -0,0 +1,144 @@
+/* Dividing a whole column of ints by the same divisor, for AdvancedCalculator
+   in inherit.java.
+
+   A hardware division is one of the slowest integer instructions. When the
+   divisor stays the same, it can be replaced by a multiplication and a shift:
+   n / d == (n * m) >> s for a "magic" number m close to 2^s / d. IntDivisor
+   works m and s out once (the method from Granlund and Montgomery, "Division
+   by Invariant Integers using Multiplication", also used by libdivide), and
+   every division after that is a multiply, a shift and a sign fix-up.
+   The result is exactly what the / operator gives, including rounding toward
+   zero for negative numbers and Integer.MIN_VALUE / -1 == Integer.MIN_VALUE.
+
+   The batch methods never print anything: a zero divisor is reported through
+   the returned flag, and the output is filled with zeros, the same value that
+   AdvancedCalculator.divide returns for a zero divisor. */
+
+class IntDivisor {
+    private final int divisor;
+    private final long magic;
+    private final int shift;
+
+    IntDivisor(int divisor) {
+        if (divisor == 0) {
+            throw new ArithmeticException("Division by zero");
+        }
+        this.divisor = divisor;
+        long abs = Math.abs((long) divisor);
+        if (abs == 1) {
+            // n / 1 and n / -1 need no magic number; see divide()
+            magic = 0;
+            shift = 0;
+            return;
+        }
+        // l = ceil(log2 |d|), m = 2^(31 + l) / |d| + 1, which is at most 2^32,
+        // so m * n always fits in a long for any int n
+        int l = 64 - Long.numberOfLeadingZeros(abs - 1);
+        shift = 31 + l;
+        magic = (1L << shift) / abs + 1;
+    }
+
+    int divisor() {
+        return divisor;
+    }
+
+    // Same as n / divisor
+    int divide(int n) {
+        if (magic == 0) {
+            return divisor == 1 ? n : -n;
+        }
+        long q = (magic * n) >> shift; // rounds down
+        q -= n >> 31;                  // +1 for negative n, so it rounds toward zero
+        return (int) (divisor < 0 ? -q : q);
+    }
+
+    // out[i] = a[i] / divisor
+    void divide(int[] a, int[] out) {
+        if (out.length != a.length) {
+            throw new IllegalArgumentException("Arrays must have the same length: "
+                    + a.length + ", " + out.length);
+        }
+        if (magic == 0) {
+            for (int i = 0; i < a.length; i++) {
+                out[i] = divisor == 1 ? a[i] : -a[i];
+            }
+            return;
+        }
+        long m = magic;
+        int s = shift;
+        boolean negative = divisor < 0;
+        for (int i = 0; i < a.length; i++) {
+            int n = a[i];
+            long q = ((m * n) >> s) - (n >> 31);
+            out[i] = (int) (negative ? -q : q);
+        }
+    }
+
+    // out[i] = a[i] / divisor (whole-number quotients).
+    // Returns false, and fills out with zeros, when the divisor is zero.
+    static boolean divide(int[] a, int divisor, int[] out) {
+        if (out.length != a.length) {
+            throw new IllegalArgumentException("Arrays must have the same length: "
+                    + a.length + ", " + out.length);
+        }
+        if (divisor == 0) {
+            java.util.Arrays.fill(out, 0);
+            return false;
+        }
+        new IntDivisor(divisor).divide(a, out);
+        return true;
+    }
+
+    // out[i] = (double) a[i] / divisor, the same values AdvancedCalculator.divide gives.
+    // A double quotient cannot be taken from a multiply-and-shift without changing
+    // the rounding, so this keeps the division, but the loop has no branches or I/O
+    // and the JIT can turn it into vector instructions.
+    // Returns false, and fills out with 0.0, when the divisor is zero.
+    static boolean divide(int[] a, int divisor, double[] out) {
+        if (out.length != a.length) {
+            throw new IllegalArgumentException("Arrays must have the same length: "
+                    + a.length + ", " + out.length);
+        }
+        if (divisor == 0) {
+            java.util.Arrays.fill(out, 0.0);
+            return false;
+        }
+        double d = divisor;
+        for (int i = 0; i < a.length; i++) {
+            out[i] = a[i] / d;
+        }
+        return true;
+    }
+}
+
+public class IntDivisorBenchmark {
+    public static void main(String[] args) {
+        int[] a = new int[1_000_000];
+        java.util.Random random = new java.util.Random(13);
+        for (int i = 0; i < a.length; i++) {
+            a[i] = random.nextInt();
+        }
+        int[] out = new int[a.length];
+
+        // The divisor comes from outside, so the JIT cannot optimize the plain loop for it
+        int divisor = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+        long plain = MicroBench.bestNanos(() -> {
+            for (int i = 0; i < a.length; i++) {
+                out[i] = a[i] / divisor;
+            }
+            return out[0];
+        });
+        IntDivisor precomputed = new IntDivisor(divisor);
+        long magic = MicroBench.bestNanos(() -> {
+            precomputed.divide(a, out);
+            return out[0];
+        });
+
+        System.out.println("1M ints divided by " + divisor);
+        MicroBench.report("hardware division", plain, plain);
+        MicroBench.report("multiply and shift", magic, plain);
+
+        boolean ok = IntDivisor.divide(a, 0, out);
+        System.out.println("Dividing by zero reported: " + !ok);
+    }
+}
@@ -0,0 +1,186 @@
+/* Exact whole-number powers, used by ScientificCalculator in inherit.java.
+
+   (int) Math.pow(a, b) works with doubles: it is slower than it needs to be,
+   and when the answer does not fit in an int the cast silently gives a wrong
+   number (Math.pow(3, 25) is 847288609443, but the cast gives 2147483647).
+
+   IntPower uses "exponentiation by squaring": to compute 3^13, write 13 in
+   binary as 1101 and multiply together 3^8 * 3^4 * 3^1, where each of those is
+   the previous one squared. That takes about log2(exponent) multiplications.
+   Every multiplication is checked for overflow:
+     - powExact throws ArithmeticException, like Math.multiplyExact
+     - pow returns a BigInteger when the answer does not fit in a long
+
+   Negative exponents follow integer division: 1 / base^n truncated to a whole
+   number, so only 1 and -1 give a non-zero answer and 0 throws. */
+
+import java.math.BigInteger;
+
+class IntPower {
+    // Below this modulus the product of two remainders always fits in a long
+    static final long SAFE_MODULUS = 3_037_000_499L; // floor(sqrt(Long.MAX_VALUE))
+
+    private IntPower() {
+    }
+
+    static int powExact(int base, int exponent) {
+        return Math.toIntExact(powExact((long) base, exponent));
+    }
+
+    static long powExact(long base, int exponent) {
+        if (exponent < 0) {
+            return negativePower(base, exponent);
+        }
+        long result = 1;
+        while (true) {
+            if ((exponent & 1) != 0) {
+                result = Math.multiplyExact(result, base);
+            }
+            exponent >>>= 1;
+            if (exponent == 0) {
+                return result;
+            }
+            // Only square when more bits follow, so the last square cannot overflow needlessly
+            base = Math.multiplyExact(base, base);
+        }
+    }
+
+    // Exact for any size of answer: a long while it fits, then BigInteger
+    static BigInteger pow(long base, int exponent) {
+        try {
+            return BigInteger.valueOf(powExact(base, exponent));
+        } catch (ArithmeticException overflow) {
+            if (exponent < 0) {
+                throw overflow; // division by zero, not an overflow
+            }
+            return BigInteger.valueOf(base).pow(exponent);
+        }
+    }
+
+    // base^exponent mod modulus, always between 0 and modulus - 1
+    static long modPow(long base, long exponent, long modulus) {
+        if (modulus <= 0) {
+            throw new ArithmeticException("Modulus must be positive: " + modulus);
+        }
+        if (exponent < 0) {
+            throw new ArithmeticException("Exponent must not be negative: " + exponent);
+        }
+        if (modulus > SAFE_MODULUS) {
+            return BigInteger.valueOf(base)
+                    .modPow(BigInteger.valueOf(exponent), BigInteger.valueOf(modulus))
+                    .longValue();
+        }
+        long result = 1 % modulus;
+        base = Math.floorMod(base, modulus);
+        while (exponent > 0) {
+            if ((exponent & 1) != 0) {
+                result = result * base % modulus;
+            }
+            exponent >>>= 1;
+            base = base * base % modulus;
+        }
+        return result;
+    }
+
+    // Raises every base to the same exponent: out[i] = bases[i]^exponent.
+    // Instead of throwing, an overflow sets overflow[i] and leaves out[i] = 0;
+    // those entries can be recomputed with pow(). Returns the number of overflows.
+    static int powAll(int[] bases, int exponent, long[] out, boolean[] overflow) {
+        if (out.length != bases.length || overflow.length != bases.length) {
+            throw new IllegalArgumentException("Arrays must have the same length: "
+                    + bases.length + ", " + out.length + ", " + overflow.length);
+        }
+        if (exponent < 0) {
+            for (int i = 0; i < bases.length; i++) {
+                out[i] = negativePower(bases[i], exponent);
+                overflow[i] = false;
+            }
+            return 0;
+        }
+        int overflows = 0;
+        for (int i = 0; i < bases.length; i++) {
+            long base = bases[i];
+            long result = 1;
+            boolean overflowed = false;
+            for (int e = exponent; ; ) {
+                if ((e & 1) != 0) {
+                    long product = result * base;
+                    overflowed |= Math.multiplyHigh(result, base) != (product >> 63);
+                    result = product;
+                }
+                e >>>= 1;
+                if (e == 0 || overflowed) {
+                    break;
+                }
+                long square = base * base;
+                overflowed |= Math.multiplyHigh(base, base) != (square >> 63);
+                base = square;
+            }
+            out[i] = overflowed ? 0 : result;
+            overflow[i] = overflowed;
+            if (overflowed) {
+                overflows++;
+            }
+        }
+        return overflows;
+    }
+
+    // 1 / base^n for n > 0, truncated like integer division
+    private static long negativePower(long base, int exponent) {
+        if (base == 0) {
+            throw new ArithmeticException("Division by zero: 0 to a negative power");
+        }
+        if (base == 1) {
+            return 1;
+        }
+        if (base == -1) {
+            return (exponent & 1) == 0 ? 1 : -1;
+        }
+        return 0;
+    }
+}
+
+// Compares IntPower with the (int) Math.pow cast it replaces
+public class IntPowerBenchmark {
+    public static void main(String[] args) {
+        System.out.println("3^25 with (int) Math.pow: " + (int) Math.pow(3, 25));
+        System.out.println("3^25 with IntPower.pow:   " + IntPower.pow(3, 25));
+        System.out.println("3^100:                    " + IntPower.pow(3, 100));
+        System.out.println("3^100 mod 1000000007:     " + IntPower.modPow(3, 100, 1_000_000_007));
+        try {
+            IntPower.powExact(3, 25);
+        } catch (ArithmeticException e) {
+            System.out.println("powExact(3, 25) for an int: " + e.getMessage());
+        }
+
+        int[] bases = new int[1_000_000];
+        java.util.Random random = new java.util.Random(9);
+        for (int i = 0; i < bases.length; i++) {
+            bases[i] = random.nextInt(200) - 100;
+        }
+        long[] out = new long[bases.length];
+        boolean[] overflow = new boolean[bases.length];
+
+        int exponent = 7;
+        long mathPow = MicroBench.bestNanos(() -> {
+            long total = 0;
+            for (int base : bases) {
+                total += (int) Math.pow(base, exponent);
+            }
+            return total;
+        });
+        long exact = MicroBench.bestNanos(() -> {
+            long total = 0;
+            for (int base : bases) {
+                total += IntPower.powExact((long) base, exponent);
+            }
+            return total;
+        });
+        long batch = MicroBench.bestNanos(() -> IntPower.powAll(bases, exponent, out, overflow));
+
+        System.out.println("1M powers, exponent " + exponent);
+        MicroBench.report("(int) Math.pow", mathPow, mathPow);
+        MicroBench.report("IntPower.powExact", exact, mathPow);
+        MicroBench.report("IntPower.powAll", batch, mathPow);
+    }
+}
@@ -0,0 +1,914 @@
+/* A write-ahead ledger for the bank accounts, so a crash does not lose them.
+
+   BankAccount (Encapsulation.java) and ConcurrentBankAccount
+   (concurrentaccount.java) only change a number in memory. Ledger writes every
+   change to disk first, as a record appended to the end of a log:
+
+       offset  0  long  sequence number (1, 2, 3, ...)
+               8  long  account id
+              16  long  amount in cents
+              24  int   type (DEPOSIT, WITHDRAW or SET_BALANCE)
+              28  int   CRC32C checksum of bytes 0 .. 27
+
+   32 bytes per record, little-endian, no text. The log is a series of
+   segment files of the same size, each memory-mapped (see mappedsum.java), so
+   appending a record is just copying 32 bytes into memory.
+
+   The slow part is making the record durable: forcing it to the disk (fsync)
+   takes from tens of microseconds to several milliseconds, and doing that for
+   every deposit would make throughput collapse. So Ledger uses group commit:
+   callers append their records and then wait in awaitDurable(). A background
+   thread forces all records appended so far in one go, then wakes every
+   caller whose record is now on disk. It forces as soon as no new record
+   has come in for a short moment, so one fsync covers all callers that were
+   writing at the time, but never later than the latency budget after the
+   first waiting record (or once maxBatch records are waiting). Records that
+   arrive while an fsync is running simply go into the next batch, and their
+   budget runs from when they were appended.
+
+   On startup replay() reads the segments and rebuilds the balances. It stops
+   at the first record whose sequence number or checksum is wrong: that is
+   where the last write was cut off by the crash, and records after it were
+   never reported as durable. Opening a ledger for appending continues from
+   that point: the rest of that segment is zeroed, so old records behind the
+   cut cannot come back after the next crash, and segment files after it are
+   renamed to *.discarded. The caller can pass a sequence number that is known
+   to be on disk (the one of a snapshot, which is only written once its
+   records are durable); the records up to it are then trusted and only the
+   records after it are checked, so opening costs the tail, not the whole
+   history. If a background fsync fails, every caller waiting for
+   durability, and every later append, gets an IllegalStateException.
+
+   LedgerAccounts starts from the latest snapshot (snapshot.java), if there is
+   one, and replays only the records written after it. Its accounts can only
+   be changed through LedgerAccounts, so every change is in the ledger. After
+   each snapshot the segment files whose records are all covered by the
+   oldest snapshot kept are deleted, so the ledger on disk does not keep
+   growing.
+
+   Compile together with snapshot.java, concurrentaccount.java, ringlog.java and
+   microbench.java. */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+class Ledger implements Closeable {
+    static final int RECORD_SIZE = 32;
+    static final int DEPOSIT = 1;
+    static final int WITHDRAW = 2;
+    static final int SET_BALANCE = 3;
+
+    // 2M records = 64 MB per segment file
+    static final int DEFAULT_RECORDS_PER_SEGMENT = 1 << 21;
+    static final long DEFAULT_LATENCY_BUDGET_NANOS = 1_000_000; // 1 ms
+    static final int DEFAULT_MAX_BATCH = 4096;
+    // A batch is closed when no record has come in for this long
+    static final long QUIET_NANOS = 50_000;
+
+    // What replay() hands over for every record
+    interface RecordHandler {
+        void record(long sequence, int type, long accountId, long cents);
+    }
+
+    // A mapping stays valid after its channel is closed, so only the buffer is kept
+    private static final class Segment {
+        final long firstSequence;
+        final MappedByteBuffer buffer;
+
+        Segment(long firstSequence, MappedByteBuffer buffer) {
+            this.firstSequence = firstSequence;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int recordsPerSegment;
+    private final long latencyBudgetNanos;
+    private final int maxBatch;
+
+    // Guarded by this: the segments that are not fully forced yet, the last one
+    // is the one being appended to
+    private final List<Segment> segments = new ArrayList<>();
+    private final ByteBuffer scratch = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32C crc = new CRC32C();
+    private long pendingSince; // when the oldest record that is not forced yet was appended, 0 if none
+
+    private volatile long written; // last sequence number appended
+    private volatile long durable; // last sequence number forced to disk
+    private volatile boolean closed;
+    private volatile RuntimeException failure; // set when a background force failed
+    private final Object durableLock = new Object();
+    private final Thread flusher;
+    private long forces;
+
+    private Ledger(Path directory, int recordsPerSegment, long latencyBudgetNanos, int maxBatch) {
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+        this.latencyBudgetNanos = latencyBudgetNanos;
+        this.maxBatch = maxBatch;
+        this.flusher = new Thread(this::flushLoop, "ledger-flusher");
+        flusher.setDaemon(true);
+    }
+
+    static Ledger open(Path directory) throws IOException {
+        return open(directory, DEFAULT_RECORDS_PER_SEGMENT, DEFAULT_LATENCY_BUDGET_NANOS, DEFAULT_MAX_BATCH);
+    }
+
+    static Ledger open(Path directory, int recordsPerSegment, long latencyBudgetNanos, int maxBatch)
+            throws IOException {
+        return open(directory, recordsPerSegment, latencyBudgetNanos, maxBatch, 0);
+    }
+
+    // Opens (or creates) the ledger in the directory and continues after its last good record.
+    // The records up to durableSequence are known to be on disk and are not checked again;
+    // if the ledger does not reach that far, every record is checked.
+    static Ledger open(Path directory, int recordsPerSegment, long latencyBudgetNanos, int maxBatch,
+                       long durableSequence) throws IOException {
+        if (recordsPerSegment <= 0 || recordsPerSegment > Integer.MAX_VALUE / RECORD_SIZE) {
+            throw new IllegalArgumentException("Records per segment out of range: " + recordsPerSegment);
+        }
+        if (latencyBudgetNanos < 0 || maxBatch <= 0) {
+            throw new IllegalArgumentException("Latency budget must not be negative and max batch must be positive");
+        }
+        Files.createDirectories(directory);
+        Ledger ledger = new Ledger(directory, recordsPerSegment, latencyBudgetNanos, maxBatch);
+        // Every record after durableSequence is checked: the cut can be in any
+        // segment that was not fully forced, not only in the last one
+        long last = replay(directory, durableSequence, (sequence, type, accountId, cents) -> { });
+        if (last < durableSequence) {
+            last = replay(directory, 0, (sequence, type, accountId, cents) -> { });
+        }
+        // Segments that start after the cut hold nothing that was ever durable;
+        // they are set aside so their records can never be read again
+        List<Path> files = segmentFiles(directory);
+        long first = 0;
+        for (Path file : files) {
+            if (firstSequence(file) > last + 1) {
+                Files.move(file, file.resolveSibling(file.getFileName() + ".discarded"),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                first = firstSequence(file);
+            }
+        }
+        if (first == 0 || last + 1 >= first + recordsPerSegment) {
+            first = last + 1; // the last segment is full (or there is none)
+        }
+        Segment segment = ledger.mapSegment(first);
+        ledger.zeroFrom(segment, last + 1);
+        ledger.segments.add(segment);
+        ledger.written = last;
+        ledger.durable = last;
+        ledger.flusher.start();
+        return ledger;
+    }
+
+    // Appends a record and returns its sequence number. The record is in the
+    // log but maybe not on disk yet; see awaitDurable.
+    synchronized long append(int type, long accountId, long cents) {
+        if (closed) {
+            throw new IllegalStateException("Ledger is closed");
+        }
+        checkFailure();
+        long sequence = written + 1;
+        Segment segment = segments.get(segments.size() - 1);
+        if (sequence - segment.firstSequence == recordsPerSegment) {
+            segment = mapSegment(sequence);
+            segments.add(segment);
+        }
+        scratch.clear();
+        scratch.putLong(0, sequence).putLong(8, accountId).putLong(16, cents).putInt(24, type);
+        crc.reset();
+        crc.update(scratch.limit(28));
+        scratch.limit(RECORD_SIZE).putInt(28, (int) crc.getValue());
+        segment.buffer.put((int) (sequence - segment.firstSequence) * RECORD_SIZE, scratch, 0, RECORD_SIZE);
+        written = sequence;
+
+        if (pendingSince == 0) {
+            pendingSince = System.nanoTime();
+            LockSupport.unpark(flusher);
+        } else if (sequence - durable >= maxBatch) {
+            LockSupport.unpark(flusher);
+        }
+        return sequence;
+    }
+
+    // Waits until the record with this sequence number (and every one before it) is on disk.
+    // Throws IllegalStateException if the background thread could not force it.
+    void awaitDurable(long sequence) {
+        if (durable >= sequence) {
+            return;
+        }
+        synchronized (durableLock) {
+            boolean interrupted = false;
+            while (durable < sequence) {
+                checkFailure();
+                if (closed && !flusher.isAlive()) {
+                    throw new IllegalStateException("Ledger closed before record " + sequence + " was forced");
+                }
+                try {
+                    durableLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkFailure() {
+        RuntimeException e = failure;
+        if (e != null) {
+            throw new IllegalStateException("Ledger could not be forced to disk", e);
+        }
+    }
+
+    // append + awaitDurable
+    long appendDurable(int type, long accountId, long cents) {
+        long sequence = append(type, accountId, cents);
+        awaitDurable(sequence);
+        return sequence;
+    }
+
+    // Forces everything appended so far on the calling thread. This is the
+    // one-fsync-per-operation way, without group commit.
+    synchronized void sync() {
+        force(written);
+    }
+
+    long lastSequence() {
+        return written;
+    }
+
+    long durableSequence() {
+        return durable;
+    }
+
+    // How many times the log was forced to disk
+    synchronized long forces() {
+        return forces;
+    }
+
+    // Forces every record and stops the background thread
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            segments.clear();
+        }
+    }
+
+    // Reads every good record with a sequence number above afterSequence, in
+    // order, and returns the last good sequence number (afterSequence if none
+    // are newer, 0 for an empty ledger). The records before afterSequence are
+    // not read at all; the record afterSequence itself is checked, and if it
+    // is not there the result is below afterSequence.
+    static long replay(Path directory, long afterSequence, RecordHandler handler) throws IOException {
+        List<Path> files = segmentFiles(directory);
+        long expected = files.isEmpty() ? 1 : firstSequence(files.get(0));
+        CRC32C check = new CRC32C();
+        for (int f = 0; f < files.size(); f++) {
+            long first = firstSequence(files.get(f));
+            if (first != expected) {
+                break; // a segment is missing
+            }
+            long nextFirst = f + 1 < files.size() ? firstSequence(files.get(f + 1)) : Long.MAX_VALUE;
+            if (nextFirst <= afterSequence) {
+                expected = nextFirst; // every record of this segment is older than wanted
+                continue;
+            }
+            // Start at afterSequence itself, if it is in this segment
+            int from = (int) Math.max(0, afterSequence - first);
+            expected = first + from;
+            try (FileChannel channel = FileChannel.open(files.get(f), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                int records = (int) (channel.size() / RECORD_SIZE);
+                for (int i = from; i < records; i++) {
+                    int offset = i * RECORD_SIZE;
+                    long sequence = buffer.getLong(offset);
+                    check.reset();
+                    check.update(buffer.slice(offset, 28));
+                    if (sequence != expected || (int) check.getValue() != buffer.getInt(offset + 28)) {
+                        return expected - 1; // end of the log, or a torn write
+                    }
+                    if (sequence > afterSequence) {
+                        handler.record(sequence, buffer.getInt(offset + 24),
+                                buffer.getLong(offset + 8), buffer.getLong(offset + 16));
+                    }
+                    expected++;
+                }
+            }
+        }
+        return expected - 1;
+    }
+
+    // Balances in cents by account id, rebuilt from the whole ledger. Throws
+    // IOException if the oldest segments were already deleted after a snapshot.
+    static Map<Long, Long> balances(Path directory) throws IOException {
+        long first = firstKeptSequence(directory);
+        if (first != 1) {
+            throw new IOException("The records before " + first + " were deleted; start from a snapshot");
+        }
+        Map<Long, Long> balances = new HashMap<>();
+        replay(directory, 0, (sequence, type, accountId, cents) -> apply(balances, type, accountId, cents));
+        return balances;
+    }
+
+    static void apply(Map<Long, Long> balances, int type, long accountId, long cents) {
+        switch (type) {
+            case DEPOSIT:
+                balances.merge(accountId, cents, Long::sum);
+                break;
+            case WITHDRAW:
+                balances.merge(accountId, -cents, Long::sum);
+                break;
+            case SET_BALANCE:
+                balances.put(accountId, cents);
+                break;
+            default:
+                throw new IllegalStateException("Unknown record type " + type);
+        }
+    }
+
+    // ---- group commit ----
+
+    // Forces a batch once no new record has come in for QUIET_NANOS (the callers
+    // that were going to join this batch have), when the budget of the oldest
+    // waiting record is used up, or when maxBatch records are waiting
+    private void flushLoop() {
+        long seen = -1; // the last sequence number seen on the previous look
+        while (true) {
+            long target;
+            long budgetLeft;
+            List<Segment> toForce = null;
+            synchronized (this) {
+                target = written;
+                if (target == durable && closed) {
+                    return;
+                }
+                budgetLeft = pendingSince == 0 ? 0 : pendingSince + latencyBudgetNanos - System.nanoTime();
+                boolean full = target - durable >= maxBatch || closed;
+                if (target != durable && (target == seen || budgetLeft <= 0 || full)) {
+                    toForce = new ArrayList<>(segments);
+                    // The batch ends at target, decided under the same lock, so the
+                    // next append starts the clock of the next batch with its own time
+                    pendingSince = 0;
+                }
+            }
+            if (target == durable) {
+                seen = -1;
+                LockSupport.parkNanos(this, 10_000_000); // append() wakes us up
+            } else if (toForce != null) {
+                try {
+                    forceInBackground(toForce, target);
+                } catch (RuntimeException e) {
+                    // Nothing after durable is known to be on disk any more; every
+                    // waiter and every later append gets the error
+                    failure = e;
+                    synchronized (durableLock) {
+                        durableLock.notifyAll();
+                    }
+                    return;
+                }
+                seen = -1;
+            } else {
+                seen = target;
+                LockSupport.parkNanos(this, Math.min(QUIET_NANOS, budgetLeft));
+            }
+        }
+    }
+
+    private void forceInBackground(List<Segment> toForce, long target) {
+        // The fsync itself runs without the lock, so appends go on meanwhile
+        forceSegments(toForce, durable, target);
+        synchronized (this) {
+            forces++;
+            dropForcedSegments(target);
+        }
+        publishDurable(target);
+    }
+
+    // Called with the lock held
+    private void force(long target) {
+        if (target <= durable) {
+            return;
+        }
+        forceSegments(segments, durable, target);
+        forces++;
+        dropForcedSegments(target);
+        publishDurable(target);
+    }
+
+    // Forces the records after durableBefore up to target
+    private void forceSegments(List<Segment> list, long durableBefore, long target) {
+        for (Segment segment : list) {
+            long from = Math.max(durableBefore + 1, segment.firstSequence);
+            long to = Math.min(target, segment.firstSequence + recordsPerSegment - 1);
+            if (from <= to) {
+                segment.buffer.force((int) (from - segment.firstSequence) * RECORD_SIZE,
+                        (int) (to - from + 1) * RECORD_SIZE);
+            }
+        }
+    }
+
+    // Full segments that are completely on disk are not needed any more
+    private void dropForcedSegments(long target) {
+        while (segments.size() > 1
+                && segments.get(0).firstSequence + recordsPerSegment - 1 <= target) {
+            segments.remove(0);
+        }
+    }
+
+    private void publishDurable(long target) {
+        synchronized (durableLock) {
+            if (target > durable) {
+                durable = target;
+            }
+            durableLock.notifyAll();
+        }
+    }
+
+    // Deletes the segment files whose records all have a sequence number up to
+    // this one and are on disk, oldest first; never the segment being appended
+    // to. Meant for the records a snapshot already holds. Returns how many went.
+    synchronized int deleteSegmentsThrough(long sequence) throws IOException {
+        List<Path> files = segmentFiles(directory);
+        int deleted = 0;
+        for (int f = 0; f + 1 < files.size(); f++) {
+            long lastInFile = firstSequence(files.get(f + 1)) - 1;
+            if (lastInFile > sequence || lastInFile > durable) {
+                break;
+            }
+            Files.delete(files.get(f));
+            deleted++;
+        }
+        return deleted;
+    }
+
+    // ---- files ----
+
+    // Clears everything from the record with this sequence number to the end
+    // of the segment. Old records there (from before a crash) could otherwise
+    // pass the checks again once the records in front of them are rewritten.
+    private void zeroFrom(Segment segment, long sequence) {
+        MappedByteBuffer buffer = segment.buffer;
+        boolean changed = false;
+        for (int offset = (int) (sequence - segment.firstSequence) * RECORD_SIZE; offset < buffer.capacity();
+                offset += Long.BYTES) {
+            if (buffer.getLong(offset) != 0) {
+                buffer.putLong(offset, 0);
+                changed = true;
+            }
+        }
+        if (changed) {
+            buffer.force();
+        }
+    }
+
+    private Segment mapSegment(long firstSequence) {
+        Path path = directory.resolve(String.format("ledger-%019d.log", firstSequence));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) recordsPerSegment * RECORD_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new Segment(firstSequence, buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The segment files in order; the name holds the first sequence number, zero-padded
+    static List<Path> segmentFiles(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().matches("ledger-\\d{19}\\.log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // The sequence number of the oldest record still on disk (1 if nothing was deleted)
+    static long firstKeptSequence(Path directory) throws IOException {
+        List<Path> files = segmentFiles(directory);
+        return files.isEmpty() ? 1 : firstSequence(files.get(0));
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring("ledger-".length(), name.length() - ".log".length()));
+    }
+}
+
+// Accounts by id whose every change is written to a Ledger before it is reported done.
+//
+// Snapshots are taken copy-on-write while the changes go on. A change holds
+// the read side of the gate while it updates the balance and appends its
+// record. A snapshot takes the write side only for a moment: then no change
+// is half done, so the balances are exactly those after the last record
+// appended. It notes that sequence number, starts a new epoch and lets go.
+// From then on the first change to an account saves the old balance and
+// name before it touches them, and the snapshot writes the saved values (or
+// the current ones, for an account nobody changed) while the work goes on.
+class LedgerAccounts implements Closeable {
+    // An account, and what it looked like when the running snapshot started
+    private static final class Entry {
+        final ConcurrentBankAccount account;
+        private volatile long savedEpoch;
+        private long savedCents;
+        private String savedName;
+
+        Entry(ConcurrentBankAccount account) {
+            this.account = account;
+        }
+
+        // Saves the balance and name once per epoch, before anything changes them
+        synchronized void save(long epoch) {
+            if (savedEpoch != epoch) {
+                savedCents = account.getBalanceCents();
+                savedName = account.getAccountHolderName();
+                savedEpoch = epoch;
+            }
+        }
+    }
+
+    private final Map<Long, Entry> accounts = new ConcurrentHashMap<>();
+    private final Path directory;
+    private final Ledger ledger;
+    private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+    private volatile long snapshotEpoch; // the epoch of the running snapshot, 0 if none
+
+    // Guarded by snapshotLock: one snapshot at a time
+    private final Object snapshotLock = new Object();
+    private long epochs;
+    private volatile long snapshots;
+    // Failures of the background snapshots, which have no caller to throw to
+    private volatile long snapshotFailures;
+    private volatile Exception lastSnapshotFailure;
+    private long skippedSnapshots;
+    private ScheduledExecutorService snapshotter; // guarded by this
+    private long replayedRecords;
+
+    private LedgerAccounts(Path directory, Ledger ledger) {
+        this.directory = directory;
+        this.ledger = ledger;
+    }
+
+    // Loads the latest snapshot in the directory, replays the ledger records
+    // written after it and keeps appending to the ledger. Only those records
+    // are read and checked. Without a snapshot the whole ledger is replayed.
+    // Throws IOException if the records needed were deleted after a snapshot
+    // that is now damaged.
+    static LedgerAccounts open(Path directory, long latencyBudgetNanos) throws IOException {
+        List<Path> skipped = new ArrayList<>();
+        AccountSnapshot snapshot = AccountSnapshot.latest(directory, skipped);
+        // A snapshot is only committed once its records are durable
+        long after = snapshot == null ? 0 : snapshot.sequence();
+        LedgerAccounts result = new LedgerAccounts(directory, Ledger.open(directory,
+                Ledger.DEFAULT_RECORDS_PER_SEGMENT, latencyBudgetNanos, Ledger.DEFAULT_MAX_BATCH, after));
+        result.skippedSnapshots = skipped.size();
+        if (after > result.ledger.lastSequence()) {
+            RingLog.log("Snapshot after record {} is newer than the ledger, replaying everything", after);
+            result.skippedSnapshots++;
+            snapshot = null;
+            after = 0;
+        }
+        long firstKept = Ledger.firstKeptSequence(directory);
+        if (after + 1 < firstKept) {
+            result.ledger.close();
+            throw new IOException("Records " + (after + 1) + " to " + (firstKept - 1)
+                    + " were deleted and no readable snapshot holds them");
+        }
+        if (snapshot != null) {
+            snapshot.forEach((id, cents, holderName) -> result.accounts.put(id,
+                    new Entry(new ConcurrentBankAccount(holderName, ConcurrentBankAccount.toDollars(cents)))));
+        }
+        // The tail is summed per account first and the balances are set once at the end
+        Map<Long, Long> tail = new HashMap<>();
+        long[] records = new long[1];
+        Ledger.replay(directory, after, (sequence, type, accountId, cents) -> {
+            tail.computeIfAbsent(accountId, result::currentCents);
+            Ledger.apply(tail, type, accountId, cents);
+            records[0]++;
+        });
+        tail.forEach((id, cents) -> result.entry(id).account.setBalance(ConcurrentBankAccount.toDollars(cents)));
+        result.replayedRecords = records[0];
+        return result;
+    }
+
+    // Read-only: every change goes through setBalance, deposit and withdraw,
+    // so it is in the ledger and in the next snapshot
+    long balanceCents(long id) {
+        Entry entry = accounts.get(id);
+        return entry == null ? 0 : entry.account.getBalanceCents();
+    }
+
+    double balance(long id) {
+        return ConcurrentBankAccount.toDollars(balanceCents(id));
+    }
+
+    String holderName(long id) {
+        Entry entry = accounts.get(id);
+        return entry == null ? "Account " + id : entry.account.getAccountHolderName();
+    }
+
+    Ledger ledger() {
+        return ledger;
+    }
+
+    // How many snapshot files open() could not use (damaged, or newer than the ledger)
+    long skippedSnapshots() {
+        return skippedSnapshots;
+    }
+
+    // How many ledger records open() had to replay
+    long replayedRecords() {
+        return replayedRecords;
+    }
+
+    // Meant for opening an account; a SET_BALANCE record does not mix well with
+    // deposits to the same account running at the same time
+    void setBalance(long id, double balance) {
+        long sequence;
+        gate.readLock().lock();
+        try {
+            Entry entry = beforeChange(id);
+            synchronized (entry) {
+                long before = entry.account.getBalanceCents();
+                entry.account.setBalance(balance);
+                try {
+                    sequence = ledger.append(Ledger.SET_BALANCE, id, entry.account.getBalanceCents());
+                } catch (RuntimeException e) {
+                    entry.account.setBalance(ConcurrentBankAccount.toDollars(before));
+                    throw e;
+                }
+            }
+        } finally {
+            gate.readLock().unlock();
+        }
+        ledger.awaitDurable(sequence);
+    }
+
+    // Same rules and messages as BankAccount.deposit; returns once the record is on disk.
+    // The change and its record happen under the account's lock, so the records
+    // of one account are in the log in the order the changes were made: a
+    // withdrawal that needed an earlier deposit always comes after it, and
+    // is only durable once that deposit is.
+    boolean deposit(long id, double amount) {
+        long sequence;
+        gate.readLock().lock();
+        try {
+            Entry entry = beforeChange(id);
+            synchronized (entry) {
+                if (!entry.account.deposit(amount)) {
+                    return false;
+                }
+                long cents = ConcurrentBankAccount.toCents(amount);
+                try {
+                    sequence = ledger.append(Ledger.DEPOSIT, id, cents);
+                } catch (RuntimeException e) {
+                    entry.account.withdrawCents(cents); // not logged, so not done
+                    throw e;
+                }
+            }
+        } finally {
+            gate.readLock().unlock();
+        }
+        ledger.awaitDurable(sequence);
+        return true;
+    }
+
+    boolean withdraw(long id, double amount) {
+        long sequence;
+        gate.readLock().lock();
+        try {
+            Entry entry = beforeChange(id);
+            synchronized (entry) {
+                if (!entry.account.withdraw(amount)) {
+                    return false;
+                }
+                long cents = ConcurrentBankAccount.toCents(amount);
+                try {
+                    sequence = ledger.append(Ledger.WITHDRAW, id, cents);
+                } catch (RuntimeException e) {
+                    entry.account.depositCents(cents);
+                    throw e;
+                }
+            }
+        } finally {
+            gate.readLock().unlock();
+        }
+        ledger.awaitDurable(sequence);
+        return true;
+    }
+
+    // Writes a snapshot of every account and returns its file. Deposits and
+    // withdrawals only wait while the sequence number is taken.
+    Path snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long epoch = ++epochs;
+            long sequence;
+            gate.writeLock().lock();
+            try {
+                sequence = ledger.lastSequence();
+                snapshotEpoch = epoch;
+            } finally {
+                gate.writeLock().unlock();
+            }
+            try (AccountSnapshot.Writer writer = new AccountSnapshot.Writer(directory, sequence)) {
+                for (Map.Entry<Long, Entry> e : accounts.entrySet()) {
+                    Entry entry = e.getValue();
+                    entry.save(epoch);
+                    writer.add(e.getKey(), entry.savedCents, entry.savedName);
+                }
+                snapshotEpoch = 0;
+                // The snapshot holds every record up to sequence, so they must be
+                // on disk before it is: otherwise a crash could keep the
+                // snapshot and lose the records
+                ledger.awaitDurable(sequence);
+                Path file = writer.commit();
+                snapshots++;
+                // Replay starts at the oldest snapshot kept at the latest (when
+                // the newer one is damaged), so older segments are not needed
+                List<Path> kept = AccountSnapshot.snapshotFiles(directory);
+                ledger.deleteSegmentsThrough(AccountSnapshot.sequenceOf(kept.get(0)));
+                return file;
+            } finally {
+                snapshotEpoch = 0;
+            }
+        }
+    }
+
+    // Takes a snapshot every periodMillis on a background thread, until close()
+    synchronized void startSnapshots(long periodMillis) {
+        if (snapshotter != null) {
+            throw new IllegalStateException("Snapshots are already running");
+        }
+        snapshotter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "account-snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (IOException | RuntimeException e) {
+                lastSnapshotFailure = e;
+                RingLog.log("Snapshot failed, failures so far: {}", ++snapshotFailures);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // How many snapshots were written
+    long snapshots() {
+        return snapshots;
+    }
+
+    // How many background snapshots failed, and the last error (null if none)
+    long snapshotFailures() {
+        return snapshotFailures;
+    }
+
+    Exception lastSnapshotFailure() {
+        return lastSnapshotFailure;
+    }
+
+    // Lets a running snapshot finish, then closes the ledger
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (snapshotter != null) {
+                snapshotter.shutdown();
+                try {
+                    snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        ledger.close();
+    }
+
+    private Entry entry(long id) {
+        return accounts.computeIfAbsent(id, key -> new Entry(new ConcurrentBankAccount("Account " + key, 0)));
+    }
+
+    // Called with the read side of the gate held, before the account changes
+    private Entry beforeChange(long id) {
+        Entry entry = entry(id);
+        long epoch = snapshotEpoch;
+        if (epoch != 0 && entry.savedEpoch != epoch) {
+            entry.save(epoch);
+        }
+        return entry;
+    }
+
+    private Long currentCents(Long id) {
+        return balanceCents(id);
+    }
+}
+
+public class LedgerDemo {
+    static final int THREADS = 8;
+    static final int OPERATIONS_PER_THREAD = 5_000;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("ledger");
+        try {
+            // Many threads, every deposit waits until it is on disk
+            try (LedgerAccounts bank = LedgerAccounts.open(directory, Ledger.DEFAULT_LATENCY_BUDGET_NANOS)) {
+                bank.setBalance(1, 1000.0);
+                bank.setBalance(2, 50.0);
+                long start = System.nanoTime();
+                ConcurrentAccountDemo.runThreads(THREADS, () -> {
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        bank.deposit(1 + i % 2, 0.25);
+                        bank.withdraw(1 + i % 2, 0.10);
+                    }
+                    return 0;
+                });
+                long nanos = System.nanoTime() - start;
+                int operations = THREADS * OPERATIONS_PER_THREAD * 2;
+                System.out.printf("Group commit: %d durable operations in %.1f ms, %d fsyncs%n",
+                        operations, nanos / 1e6, bank.ledger().forces());
+                System.out.println("In memory:  1 -> " + bank.balance(1) + ", 2 -> " + bank.balance(2));
+            }
+
+            // "Restart": rebuild the balances from the files alone
+            try (LedgerAccounts restarted = LedgerAccounts.open(directory, Ledger.DEFAULT_LATENCY_BUDGET_NANOS)) {
+                System.out.println("Replayed:   1 -> " + restarted.balance(1) + ", 2 -> " + restarted.balance(2)
+                        + " (" + restarted.ledger().lastSequence() + " records)");
+            }
+
+            // The same work with one fsync per operation
+            Path single = Files.createTempDirectory("ledger-sync");
+            try (Ledger ledger = Ledger.open(single)) {
+                long start = System.nanoTime();
+                ConcurrentAccountDemo.runThreads(THREADS, () -> {
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        ledger.append(Ledger.DEPOSIT, 1, 25);
+                        ledger.sync();
+                        ledger.append(Ledger.WITHDRAW, 1, 10);
+                        ledger.sync();
+                    }
+                    return 0;
+                });
+                long nanos = System.nanoTime() - start;
+                System.out.printf("One fsync per operation: %.1f ms, %d fsyncs%n", nanos / 1e6, ledger.forces());
+            } finally {
+                deleteAll(single);
+            }
+        } finally {
+            deleteAll(directory);
+        }
+    }
+
+    static void deleteAll(Path directory) throws IOException {
+        for (Path file : Ledger.segmentFiles(directory)) {
+            Files.delete(file);
+        }
+        try (Stream<Path> rest = Files.list(directory)) {
+            for (Path file : rest.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,150 @@
+/* Summing numbers stored in a file that is bigger than the heap.
+
+   Instead of reading the file into an int[] first, the file is memory-mapped:
+   FileChannel.map() lets us read the file's bytes as if they were memory, and
+   the operating system pages them in as they are touched. Nothing is copied
+   onto the Java heap, so there is no garbage to collect.
+
+   A single mapping is limited to 2 GB, so the file is mapped in "windows"
+   one after another. Each window is unmapped as soon as it has been read, so
+   only one is mapped at a time, however big the file is. The numbers are
+   stored little-endian (lowest byte first), which is the byte order of x86
+   and ARM machines. A sum that does not fit in a long throws an
+   ArithmeticException instead of wrapping around.
+
+   Compile together with sumstats.java (and, for the demo, methodoverloading.java
+   with the files it needs, listed in vectorsum.java). */
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+class MappedFileReducer {
+    // 64 MB per window: large enough to keep the loop busy, small enough
+    // not to exhaust address space on 32-bit systems
+    static final long DEFAULT_WINDOW = 64L << 20;
+
+    // sun.misc.Unsafe.invokeCleaner, the only way to unmap a buffer before the
+    // garbage collector does; null if this JDK does not have it
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null; // the mappings are then released by the garbage collector
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    static SumStats sumInts(Path file) throws IOException {
+        return reduce(file, Integer.BYTES, DEFAULT_WINDOW);
+    }
+
+    static SumStats sumLongs(Path file) throws IOException {
+        return reduce(file, Long.BYTES, DEFAULT_WINDOW);
+    }
+
+    // elementSize is 4 for ints or 8 for longs; windowBytes is rounded down
+    // to a whole number of elements so no value is split between two windows
+    static SumStats reduce(Path file, int elementSize, long windowBytes) throws IOException {
+        if (elementSize != Integer.BYTES && elementSize != Long.BYTES) {
+            throw new IllegalArgumentException("Element size must be 4 or 8 bytes: " + elementSize);
+        }
+        long window = Math.min(windowBytes - windowBytes % elementSize,
+                Integer.MAX_VALUE - Integer.MAX_VALUE % elementSize);
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window is smaller than one element: " + windowBytes);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size % elementSize != 0) {
+                throw new IllegalArgumentException(file + " is " + size
+                        + " bytes, which is not a whole number of " + elementSize + "-byte values");
+            }
+
+            long count = 0;
+            long sum = 0;
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (long position = 0; position < size; position += window) {
+                int length = (int) Math.min(window, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                try {
+                    if (elementSize == Integer.BYTES) {
+                        for (int i = 0; i < length; i += Integer.BYTES) {
+                            int value = buffer.getInt(i);
+                            sum = Math.addExact(sum, value);
+                            min = Math.min(min, value);
+                            max = Math.max(max, value);
+                        }
+                    } else {
+                        for (int i = 0; i < length; i += Long.BYTES) {
+                            long value = buffer.getLong(i);
+                            sum = Math.addExact(sum, value);
+                            min = Math.min(min, value);
+                            max = Math.max(max, value);
+                        }
+                    }
+                } finally {
+                    unmap(buffer);
+                }
+                count += length / elementSize;
+            }
+            return count == 0 ? SumStats.EMPTY : new SumStats(count, sum, min, max);
+        }
+    }
+
+    // Releases the mapping now; the buffer must not be used afterwards
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // left to the garbage collector
+        }
+    }
+}
+
+public class MappedSumDemo {
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        Path file = java.nio.file.Files.createTempFile("numbers", ".bin");
+        try {
+            // Write some little-endian ints, keeping a copy to check the answer
+            int[] numbers = new int[size];
+            java.util.Random random = new java.util.Random(3);
+            java.nio.ByteBuffer bytes = java.nio.ByteBuffer.allocate(size * Integer.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < size; i++) {
+                numbers[i] = random.nextInt();
+                bytes.putInt(numbers[i]);
+            }
+            java.nio.file.Files.write(file, bytes.array());
+
+            SumStats stats = MappedFileReducer.sumInts(file);
+            System.out.println("From the file:  " + stats);
+            System.out.println("From the array: sum=" + new Calculator().sum(numbers));
+        } finally {
+            java.nio.file.Files.delete(file);
+        }
+    }
+}
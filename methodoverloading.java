@@ -3,6 +3,8 @@
 2. **Type of parameters**
 3. **Order of parameters***/
 
+import java.util.concurrent.ForkJoinPool;
+
 class Calculator {
     // Method 1: Adding two integers
     public int add(int n1, int n2) {
@@ -29,14 +31,155 @@ class Calculator {
         return n1 + n2;
     }
 
-    // Method 6: Adding an array of integers
+    // Method 6: Adding an array of integers (wraps around like int addition)
     public int add(int[] numbers) {
-        int sum = 0;
+        return (int) sum(numbers);
+    }
+
+    // Method 7: Adding an array of longs
+    public long add(long[] numbers) {
+        if (VECTOR_API && numbers.length >= VECTOR_THRESHOLD) {
+            return VectorizedSum.sum(numbers);
+        }
+        return scalarSum(numbers);
+    }
+
+    // Method 8: Adding an array of doubles
+    // (the vector path adds lanes in a different order, so the last bits may differ)
+    public double add(double[] numbers) {
+        if (VECTOR_API && numbers.length >= VECTOR_THRESHOLD) {
+            return VectorizedSum.sum(numbers);
+        }
+        return scalarSum(numbers);
+    }
+
+    // Adding an array of integers into a long, so large arrays do not overflow
+    public long sum(int[] numbers) {
+        if (VECTOR_API && numbers.length >= VECTOR_THRESHOLD) {
+            return VectorizedSum.sum(numbers);
+        }
+        return scalarSum(numbers);
+    }
+
+    // Element-wise operations on two arrays into an output array: out[i] = a[i] OP b[i].
+    // The slice versions are in BatchKernels.
+    public void add(int[] a, int[] b, int[] out) {
+        BatchKernels.add(a, b, out);
+    }
+
+    public void add(double[] a, double[] b, double[] out) {
+        BatchKernels.add(a, b, out);
+    }
+
+    public void add(double[] a, int[] b, double[] out) {
+        BatchKernels.add(a, b, out);
+    }
+
+    public void add(int[] a, double[] b, double[] out) {
+        BatchKernels.add(a, b, out);
+    }
+
+    public void subtract(int[] a, int[] b, int[] out) {
+        BatchKernels.subtract(a, b, out);
+    }
+
+    public void subtract(double[] a, double[] b, double[] out) {
+        BatchKernels.subtract(a, b, out);
+    }
+
+    public void subtract(double[] a, int[] b, double[] out) {
+        BatchKernels.subtract(a, b, out);
+    }
+
+    public void subtract(int[] a, double[] b, double[] out) {
+        BatchKernels.subtract(a, b, out);
+    }
+
+    public void multiply(int[] a, int[] b, int[] out) {
+        BatchKernels.multiply(a, b, out);
+    }
+
+    public void multiply(double[] a, double[] b, double[] out) {
+        BatchKernels.multiply(a, b, out);
+    }
+
+    public void multiply(double[] a, int[] b, double[] out) {
+        BatchKernels.multiply(a, b, out);
+    }
+
+    public void multiply(int[] a, double[] b, double[] out) {
+        BatchKernels.multiply(a, b, out);
+    }
+
+    // Integer division truncates and throws ArithmeticException on a zero divisor
+    public void divide(int[] a, int[] b, int[] out) {
+        BatchKernels.divide(a, b, out);
+    }
+
+    public void divide(double[] a, double[] b, double[] out) {
+        BatchKernels.divide(a, b, out);
+    }
+
+    public void divide(double[] a, int[] b, double[] out) {
+        BatchKernels.divide(a, b, out);
+    }
+
+    public void divide(int[] a, double[] b, double[] out) {
+        BatchKernels.divide(a, b, out);
+    }
+
+    // Parallel versions of the array methods: opt-in by passing the pool to run on.
+    // They always return exactly what the sequential versions return.
+    public int add(int[] numbers, ForkJoinPool pool) {
+        return (int) sum(numbers, pool);
+    }
+
+    public long add(long[] numbers, ForkJoinPool pool) {
+        return ParallelSum.sum(numbers, pool).sum;
+    }
+
+    public long sum(int[] numbers, ForkJoinPool pool) {
+        return ParallelSum.sum(numbers, pool).sum;
+    }
+
+    // Doubles are added in a fixed pairwise order, so the result is bit-for-bit
+    // the same for every pool size (it can differ from add(double[]) in the last bits)
+    public double add(double[] numbers, ForkJoinPool pool) {
+        return PairwiseSum.sum(numbers, pool);
+    }
+
+    // The Vector API lives in an incubator module that is only present when the
+    // program runs with --add-modules jdk.incubator.vector. VectorizedSum is only
+    // loaded when this flag is true, so without the module we stay on the loops below.
+    static final boolean VECTOR_API =
+            ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    // Below this size the setup of the vector loop costs more than it saves
+    static final int VECTOR_THRESHOLD = 64;
+
+    static long scalarSum(int[] numbers) {
+        long sum = 0;
         for (int num : numbers) {
             sum += num;
         }
         return sum;
     }
+
+    static long scalarSum(long[] numbers) {
+        long sum = 0;
+        for (long num : numbers) {
+            sum += num;
+        }
+        return sum;
+    }
+
+    static double scalarSum(double[] numbers) {
+        double sum = 0.0;
+        for (double num : numbers) {
+            sum += num;
+        }
+        return sum;
+    }
 }
 
 public class Main {
@@ -67,5 +210,28 @@ public class Main {
         int[] numbers = {1, 2, 3, 4, 5};
         int result6 = calc.add(numbers);
         System.out.println("Sum of array {1, 2, 3, 4, 5}: " + result6);
+
+        // Method 7: Adding an array of longs
+        long[] longs = {10_000_000_000L, 20_000_000_000L};
+        long result7 = calc.add(longs);
+        System.out.println("Sum of array {10000000000, 20000000000}: " + result7);
+
+        // Method 8: Adding an array of doubles
+        double[] doubles = {1.5, 2.5, 3.0};
+        double result8 = calc.add(doubles);
+        System.out.println("Sum of array {1.5, 2.5, 3.0}: " + result8);
+
+        // Summing ints into a long does not overflow
+        int[] big = {Integer.MAX_VALUE, Integer.MAX_VALUE};
+        System.out.println("Sum of {MAX_VALUE, MAX_VALUE} as long: " + calc.sum(big));
+
+        // Element-wise: one call for the whole array, into an output array reused by every call
+        int[] left = {10, 20, 30};
+        int[] right = {1, 2, 3};
+        int[] out = new int[3];
+        calc.multiply(left, right, out);
+        System.out.println("{10, 20, 30} * {1, 2, 3}: " + java.util.Arrays.toString(out));
+        calc.subtract(left, right, out);
+        System.out.println("{10, 20, 30} - {1, 2, 3}: " + java.util.Arrays.toString(out));
     }
 }
@@ -0,0 +1,56 @@
+/* A very small timing helper shared by the benchmark examples in this folder.
+   It is not a replacement for JMH: it just warms the code up so the JIT has
+   compiled it, then times a number of runs and reports the best one.
+   Every result is fed into a "sink" so the JIT cannot remove the work. */
+
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+class MicroBench {
+    // Results end up here so the measured code is never dead code
+    static volatile long sink;
+    static volatile double doubleSink;
+    static Object objectSink;
+
+    static int warmupRuns = 10;
+    static int measuredRuns = 10;
+
+    // Returns the best time of one run in nanoseconds
+    static long bestNanos(LongSupplier work) {
+        for (int i = 0; i < warmupRuns; i++) {
+            sink += work.getAsLong();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < measuredRuns; i++) {
+            long start = System.nanoTime();
+            sink += work.getAsLong();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    // Same as above for code that produces a double
+    static long bestNanos(DoubleSupplier work) {
+        for (int i = 0; i < warmupRuns; i++) {
+            doubleSink += work.getAsDouble();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < measuredRuns; i++) {
+            long start = System.nanoTime();
+            doubleSink += work.getAsDouble();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    // Keeps an object "used" inside a measured loop, like JMH's Blackhole
+    static void consume(Object value) {
+        objectSink = value;
+    }
+
+    // Prints one line of a result table
+    static void report(String label, long nanos, long baselineNanos) {
+        System.out.printf("%-28s %10.3f ms   speedup x%.2f%n",
+                label, nanos / 1_000_000.0, (double) baselineNanos / nanos);
+    }
+}
@@ -0,0 +1,254 @@
+/* Calculator operations looked up by name instead of by subclass.
+
+   In inherit.java each new operation is a new subclass of Calculator that
+   overrides calculate(int, int). Every subclass is one more class at a call
+   like calc.calculate(a, b), and after three of them the JIT stops inlining
+   that call (see dispatchbench.java).
+
+   OperationRegistry maps a name ("add", "multiply", "power", ...) to a
+   MethodHandle of type (int, int) -> int. For every name it keeps one
+   MutableCallSite: a call site whose target can be changed later. Code that
+   uses an operation asks once for its invoker and stores it in a static final
+   field:
+
+       static final MethodHandle ADD = OperationRegistry.STANDARD.invoker("add");
+       int sum = (int) ADD.invokeExact(a, b);
+
+   Each such call only ever sees one operation, so the JIT inlines the
+   operation straight into the caller. New operations can be registered while
+   the program runs, with no new class; registering a name again swaps the
+   target of its call site, and the JIT throws away the code that had inlined
+   the old one. An operation that is used before it is registered throws
+   UnsupportedOperationException until it is registered.
+
+   javac cannot write an invokedynamic instruction for us, so plain Java code
+   uses invoker(). bootstrap() is there for generated bytecode (for example a
+   formula compiler): an invokedynamic with the operation name as its name and
+   bootstrap() as its bootstrap method is bound to the same call site.
+
+   Compile together with dispatchbench.java, methodoverloading.java,
+   intpower.java and microbench.java. */
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.WrongMethodTypeException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntBinaryOperator;
+
+class OperationRegistry {
+    // (int, int) -> int, the type of Calculator.calculate
+    static final MethodType TYPE = MethodType.methodType(int.class, int.class, int.class);
+
+    private static final MethodHandle APPLY_AS_INT;
+    private static final MethodHandle UNKNOWN;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            APPLY_AS_INT = lookup.findVirtual(IntBinaryOperator.class, "applyAsInt", TYPE);
+            UNKNOWN = lookup.findStatic(OperationRegistry.class, "unknown",
+                    MethodType.methodType(int.class, String.class, int.class, int.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // The operations of the calculators in inherit.java (after the handles above,
+    // which it needs)
+    static final OperationRegistry STANDARD = standard();
+
+    private final Map<String, MutableCallSite> sites = new ConcurrentHashMap<>();
+    private final Map<String, MethodHandle> operations = new ConcurrentHashMap<>();
+
+    static OperationRegistry standard() {
+        OperationRegistry registry = new OperationRegistry();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            registry.register("add", lookup.findStatic(OperationRegistry.class, "add", TYPE));
+            registry.register("multiply", lookup.findStatic(OperationRegistry.class, "multiply", TYPE));
+            registry.register("power", lookup.findStatic(IntPower.class, "powExact", TYPE));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        return registry;
+    }
+
+    // Calculator.calculate
+    static int add(int a, int b) {
+        return a + b;
+    }
+
+    // AdvancedCalculator.calculate
+    static int multiply(int a, int b) {
+        return a * b;
+    }
+
+    // Adds or replaces an operation. The handle must be convertible to (int, int) -> int.
+    void register(String name, MethodHandle operation) {
+        MethodHandle typed;
+        try {
+            typed = operation.asType(TYPE);
+        } catch (WrongMethodTypeException e) {
+            throw new IllegalArgumentException("Operation " + name + " must take two ints and return an int, not "
+                    + operation.type(), e);
+        }
+        MutableCallSite site = site(name);
+        // Two threads registering the same name at once must not leave the map
+        // holding one operation and the call site the other
+        synchronized (site) {
+            operations.put(name, typed);
+            site.setTarget(typed);
+            // Threads that already run code bound to the old target see the new one
+            MutableCallSite.syncAll(new MutableCallSite[] {site});
+        }
+    }
+
+    // Adds or replaces an operation written as a lambda, e.g. (a, b) -> a - b.
+    // The lambda is bound into the handle as a constant, so it is still inlined.
+    void register(String name, IntBinaryOperator operation) {
+        register(name, APPLY_AS_INT.bindTo(operation));
+    }
+
+    boolean isRegistered(String name) {
+        return operations.containsKey(name);
+    }
+
+    Set<String> names() {
+        return new TreeSet<>(operations.keySet());
+    }
+
+    // The handle to keep in a static final field: it always calls the current
+    // operation of that name
+    MethodHandle invoker(String name) {
+        return site(name).dynamicInvoker();
+    }
+
+    // The convenient way in: looks the name up on every call, so it is slower
+    // than a stored invoker
+    int calculate(String name, int a, int b) {
+        MethodHandle operation = operations.get(name);
+        if (operation == null) {
+            return unknown(name, a, b);
+        }
+        try {
+            return (int) operation.invokeExact(a, b);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    // Bootstrap method for invokedynamic instructions whose name is an operation
+    // of the STANDARD registry
+    static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type) {
+        if (!type.equals(TYPE)) {
+            throw new IllegalArgumentException("Operation " + name + " has type " + TYPE + ", not " + type);
+        }
+        return STANDARD.site(name);
+    }
+
+    private MutableCallSite site(String name) {
+        return sites.computeIfAbsent(name, n ->
+                new MutableCallSite(MethodHandles.insertArguments(UNKNOWN, 0, n)));
+    }
+
+    private static int unknown(String name, int a, int b) {
+        throw new UnsupportedOperationException("Unknown operation: " + name);
+    }
+}
+
+public class OperationRegistryDemo {
+    // One call site per operation, each always sees a single target
+    static final MethodHandle ADD = OperationRegistry.STANDARD.invoker("add");
+    static final MethodHandle MULTIPLY = OperationRegistry.STANDARD.invoker("multiply");
+    static final MethodHandle POWER = OperationRegistry.STANDARD.invoker("power");
+    static final MethodHandle SUBTRACT = OperationRegistry.STANDARD.invoker("subtract");
+
+    static final int RECEIVERS = 1024;
+    static final int ROUNDS = 1000;
+
+    public static void main(String[] args) throws Throwable {
+        OperationRegistry ops = OperationRegistry.STANDARD;
+        System.out.println("Operations: " + ops.names());
+        System.out.println("add(5, 3) = " + (int) ADD.invokeExact(5, 3));
+        System.out.println("multiply(5, 3) = " + (int) MULTIPLY.invokeExact(5, 3));
+        System.out.println("power(2, 3) = " + (int) POWER.invokeExact(2, 3));
+
+        // subtract is not there yet; its call site already exists
+        try {
+            int unused = (int) SUBTRACT.invokeExact(5, 3);
+        } catch (UnsupportedOperationException e) {
+            System.out.println(e.getMessage());
+        }
+        ops.register("subtract", (a, b) -> a - b);
+        System.out.println("subtract(5, 3) = " + (int) SUBTRACT.invokeExact(5, 3) + " after registering it");
+
+        // Replacing an operation changes every call site bound to it
+        ops.register("add", MethodHandles.lookup().findStatic(Math.class, "addExact", OperationRegistry.TYPE));
+        try {
+            int unused = (int) ADD.invokeExact(Integer.MAX_VALUE, 1);
+        } catch (ArithmeticException e) {
+            System.out.println("add is now Math.addExact: " + e.getMessage());
+        }
+        ops.register("add", MethodHandles.lookup().findStatic(OperationRegistry.class, "add", OperationRegistry.TYPE));
+
+        // The same mix of operations as the megamorphic case of dispatchbench.java:
+        // calculator classes cycling through one call site, or one registry call site per operation
+        Hierarchies.Calculator[] calculators = DispatchBenchmark.cycle(new Hierarchies.Calculator[RECEIVERS],
+                new Hierarchies.Calculator(), new Hierarchies.AdvancedCalculator(),
+                new Hierarchies.ScientificCalculator());
+        String[] names = new String[RECEIVERS];
+        for (int i = 0; i < RECEIVERS; i++) {
+            names[i] = i % 3 == 0 ? "add" : i % 3 == 1 ? "multiply" : "power";
+        }
+
+        long subclasses = MicroBench.bestNanos(() -> {
+            long total = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                for (Hierarchies.Calculator c : calculators) {
+                    total += c.calculateQuietly(r, 2);
+                }
+            }
+            return total;
+        });
+        long invokers = MicroBench.bestNanos(() -> {
+            long total = 0;
+            try {
+                for (int r = 0; r < ROUNDS; r++) {
+                    for (int i = 0; i < RECEIVERS; i += 3) {
+                        total += (int) ADD.invokeExact(r, 2);
+                        if (i + 1 < RECEIVERS) {
+                            total += (int) MULTIPLY.invokeExact(r, 2);
+                        }
+                        if (i + 2 < RECEIVERS) {
+                            total += (int) POWER.invokeExact(r, 2);
+                        }
+                    }
+                }
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+            return total;
+        });
+        long byName = MicroBench.bestNanos(() -> {
+            long total = 0;
+            for (int r = 0; r < ROUNDS; r++) {
+                for (String name : names) {
+                    total += ops.calculate(name, r, 2);
+                }
+            }
+            return total;
+        });
+        System.out.println("1M calculations, add/multiply/power mixed:");
+        MicroBench.report("subclasses (megamorphic)", subclasses, subclasses);
+        MicroBench.report("static final invokers", invokers, subclasses);
+        MicroBench.report("calculate(name, a, b)", byName, subclasses);
+    }
+}
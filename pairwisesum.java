@@ -0,0 +1,119 @@
+/* Parallel double sums that give the same answer on every run.
+
+   Floating-point addition is not associative: (a + b) + c can differ from
+   a + (b + c) in the last bits. A normal parallel sum adds the pieces in
+   whatever order the threads finish, so the result can change from run to run.
+
+   PairwiseSum always adds in the same order. The array is cut into blocks of
+   BLOCK elements, each block is summed with a plain loop, and the block sums
+   are added pairwise in a fixed binary tree: the tree only depends on the array
+   length, never on the number of threads or on which thread does what. So the
+   parallel result is bit-for-bit the same as the sequential one, for any pool.
+   As a bonus, pairwise summation rounds less than one long loop.
+
+   Compile together with methodoverloading.java and microbench.java. */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+class PairwiseSum {
+    // Elements summed by a simple loop at the bottom of the tree. Changing it
+    // changes the tree shape and therefore the last bits of the results.
+    static final int BLOCK = 4096;
+
+    // Subtrees smaller than this are not worth forking
+    static final int FORK_THRESHOLD = 16 * BLOCK;
+
+    // Sequential, on the calling thread
+    static double sum(double[] numbers) {
+        return sum(numbers, 0, numbers.length);
+    }
+
+    // In parallel on the given pool; returns exactly what sum(numbers) returns
+    static double sum(double[] numbers, ForkJoinPool pool) {
+        if (numbers.length <= FORK_THRESHOLD) {
+            return sum(numbers);
+        }
+        return pool.invoke(new SumTask(numbers, 0, numbers.length));
+    }
+
+    static double sum(double[] numbers, int from, int to) {
+        if (to - from <= BLOCK) {
+            return blockSum(numbers, from, to);
+        }
+        int middle = split(from, to);
+        return sum(numbers, from, middle) + sum(numbers, middle, to);
+    }
+
+    // The left half always gets a whole number of blocks, half of them rounded down
+    static int split(int from, int to) {
+        int blocks = (to - from - 1) / BLOCK + 1; // rounds up without overflowing near Integer.MAX_VALUE
+        return from + (blocks / 2) * BLOCK;
+    }
+
+    static double blockSum(double[] numbers, int from, int to) {
+        double sum = 0.0;
+        for (int i = from; i < to; i++) {
+            sum += numbers[i];
+        }
+        return sum;
+    }
+
+    static class SumTask extends RecursiveTask<Double> {
+        final double[] numbers;
+        final int from;
+        final int to;
+
+        SumTask(double[] numbers, int from, int to) {
+            this.numbers = numbers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to - from <= FORK_THRESHOLD) {
+                return sum(numbers, from, to);
+            }
+            int middle = split(from, to);
+            SumTask left = new SumTask(numbers, from, middle);
+            left.fork();
+            double right = new SumTask(numbers, middle, to).compute();
+            // Always left + right, whichever half finished first
+            return left.join() + right;
+        }
+    }
+}
+
+// Checks that every pool size gives the same bits, and compares the speed
+// with the plain sequential loop
+public class PairwiseSumBenchmark {
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 20_000_000;
+        double[] numbers = new double[size];
+        java.util.Random random = new java.util.Random(11);
+        for (int i = 0; i < size; i++) {
+            numbers[i] = random.nextDouble() * Math.pow(10, random.nextInt(12) - 6);
+        }
+
+        double expected = PairwiseSum.sum(numbers);
+        System.out.println("Plain loop:          " + Calculator.scalarSum(numbers));
+        System.out.println("Pairwise (1 thread): " + expected);
+
+        long loop = MicroBench.bestNanos(() -> Calculator.scalarSum(numbers));
+        MicroBench.report("plain loop", loop, loop);
+        long pairwise = MicroBench.bestNanos(() -> PairwiseSum.sum(numbers));
+        MicroBench.report("pairwise, sequential", pairwise, loop);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int workers = 1; workers <= Math.max(cores, 4); workers *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(workers);
+            double result = PairwiseSum.sum(numbers, pool);
+            boolean identical = Double.doubleToLongBits(result) == Double.doubleToLongBits(expected);
+            long nanos = MicroBench.bestNanos(() -> PairwiseSum.sum(numbers, pool));
+            MicroBench.report("pairwise, " + workers + " workers", nanos, loop);
+            System.out.println("    bit-identical: " + identical);
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/* Parallel array sums for the Calculator in methodoverloading.java, using the
+   Fork/Join framework.
+
+   A RecursiveTask splits its part of the array in two halves until the part is
+   smaller than a "cutoff" size; the small parts are summed with a plain loop and
+   the results are added back together. The pool's worker threads steal halves
+   from each other, so all cores stay busy.
+
+   Integer addition wraps around the same way whatever the order, so the parallel
+   result is always exactly the sequential one.
+
+   Compile together with methodoverloading.java:
+       javac methodoverloading.java parallelsum.java ... */
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class ParallelSum {
+    // Below this many elements a chunk is not worth a task of its own
+    static final int MIN_CHUNK = 1 << 16;
+
+    // Each worker gets about this many chunks, so a slow worker can be helped out
+    static final int CHUNKS_PER_WORKER = 4;
+
+    // How the work was split, so you can see whether it actually scaled
+    static class Result {
+        final long sum;
+        final int length;
+        final int cutoff;
+        final int chunks;
+        final int threadsUsed;
+        final int parallelism;
+
+        Result(long sum, int length, int cutoff, int chunks, int threadsUsed, int parallelism) {
+            this.sum = sum;
+            this.length = length;
+            this.cutoff = cutoff;
+            this.chunks = chunks;
+            this.threadsUsed = threadsUsed;
+            this.parallelism = parallelism;
+        }
+
+        @Override
+        public String toString() {
+            return "sum=" + sum + ", elements=" + length + ", cutoff=" + cutoff
+                    + ", chunks=" + chunks + ", threads used=" + threadsUsed
+                    + " of " + parallelism;
+        }
+    }
+
+    // Picks the chunk size from the array length and the number of workers
+    static int cutoff(int length, int parallelism) {
+        long target = length / ((long) parallelism * CHUNKS_PER_WORKER);
+        return (int) Math.max(MIN_CHUNK, target);
+    }
+
+    static Result sum(int[] numbers, ForkJoinPool pool) {
+        int cutoff = cutoff(numbers.length, pool.getParallelism());
+        Stats stats = new Stats();
+        long sum = numbers.length <= cutoff
+                ? Calculator.scalarSum(numbers)
+                : pool.invoke(new IntSumTask(numbers, 0, numbers.length, cutoff, stats));
+        return stats.result(sum, numbers.length, cutoff, pool);
+    }
+
+    static Result sum(long[] numbers, ForkJoinPool pool) {
+        int cutoff = cutoff(numbers.length, pool.getParallelism());
+        Stats stats = new Stats();
+        long sum = numbers.length <= cutoff
+                ? Calculator.scalarSum(numbers)
+                : pool.invoke(new LongSumTask(numbers, 0, numbers.length, cutoff, stats));
+        return stats.result(sum, numbers.length, cutoff, pool);
+    }
+
+    // Counts the chunks and the threads that summed them
+    static class Stats {
+        final AtomicInteger chunks = new AtomicInteger();
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+        void chunkDone() {
+            chunks.incrementAndGet();
+            threads.add(Thread.currentThread());
+        }
+
+        Result result(long sum, int length, int cutoff, ForkJoinPool pool) {
+            if (chunks.get() == 0) {
+                chunkDone(); // the whole array was summed by the caller
+            }
+            return new Result(sum, length, cutoff, chunks.get(), threads.size(),
+                    pool.getParallelism());
+        }
+    }
+
+    static class IntSumTask extends RecursiveTask<Long> {
+        final int[] numbers;
+        final int from;
+        final int to;
+        final int cutoff;
+        final Stats stats;
+
+        IntSumTask(int[] numbers, int from, int to, int cutoff, Stats stats) {
+            this.numbers = numbers;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+            this.stats = stats;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= cutoff) {
+                long sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += numbers[i];
+                }
+                stats.chunkDone();
+                return sum;
+            }
+            int middle = (from + to) >>> 1;
+            IntSumTask left = new IntSumTask(numbers, from, middle, cutoff, stats);
+            left.fork();
+            long right = new IntSumTask(numbers, middle, to, cutoff, stats).compute();
+            return left.join() + right;
+        }
+    }
+
+    static class LongSumTask extends RecursiveTask<Long> {
+        final long[] numbers;
+        final int from;
+        final int to;
+        final int cutoff;
+        final Stats stats;
+
+        LongSumTask(long[] numbers, int from, int to, int cutoff, Stats stats) {
+            this.numbers = numbers;
+            this.from = from;
+            this.to = to;
+            this.cutoff = cutoff;
+            this.stats = stats;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= cutoff) {
+                long sum = 0;
+                for (int i = from; i < to; i++) {
+                    sum += numbers[i];
+                }
+                stats.chunkDone();
+                return sum;
+            }
+            int middle = (from + to) >>> 1;
+            LongSumTask left = new LongSumTask(numbers, from, middle, cutoff, stats);
+            left.fork();
+            long right = new LongSumTask(numbers, middle, to, cutoff, stats).compute();
+            return left.join() + right;
+        }
+    }
+}
+
+public class ParallelSumDemo {
+    public static void main(String[] args) {
+        Calculator calc = new Calculator();
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 20_000_000;
+        int[] numbers = new int[size];
+        java.util.Random random = new java.util.Random(7);
+        for (int i = 0; i < size; i++) {
+            numbers[i] = random.nextInt();
+        }
+
+        // Parallel mode is opt-in: pass the pool you want the work to run on
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        System.out.println("Sequential sum: " + calc.sum(numbers));
+        System.out.println("Parallel sum:   " + calc.sum(numbers, pool));
+        System.out.println("Same int result: " + (calc.add(numbers) == calc.add(numbers, pool)));
+
+        // The split report for pools of different sizes
+        for (int workers = 1; workers <= Runtime.getRuntime().availableProcessors(); workers *= 2) {
+            ForkJoinPool sized = new ForkJoinPool(workers);
+            long start = System.nanoTime();
+            ParallelSum.Result result = ParallelSum.sum(numbers, sized);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println(workers + " workers: " + result + " (" + millis + " ms)");
+            sized.shutdown();
+        }
+    }
+}
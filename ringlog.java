@@ -0,0 +1,214 @@
+/* A small logging helper for the messages that the example classes print while
+   they work (Calculator.calculate, AdvancedCalculator.divide, BankAccount.deposit
+   and withdraw, Library.borrowBook).
+
+   System.out.println is synchronized: when many threads print at once they all
+   queue up behind one lock, and every call formats a new String. RingLog has
+   three modes, chosen when the program starts with -Dringlog=<mode>:
+
+     off    (default) nothing is logged. The check is a static final boolean,
+            so the JIT removes the whole call and it costs nothing.
+     sync   every message is printed right away, like System.out.println.
+     async  the message and its number are stored in a ring buffer that was
+            allocated at startup (nothing new is allocated per message). A
+            background thread turns the stored messages into text and writes
+            them in batches, one write per batch. If the buffer is full the
+            message is dropped and counted instead of making the caller wait.
+
+   An unknown mode (a typo in -Dringlog) prints a warning and falls back to off.
+   Because off is the default, the "Successfully deposited", "Performing
+   addition" and "Book borrowed!" lines that the examples used to print are
+   only shown when the program runs with -Dringlog=sync or -Dringlog=async.
+
+   Messages are templates with a {} where the number goes:
+       RingLog.log("Successfully deposited: ${}", amount); */
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+final class RingLog {
+    enum Mode { OFF, SYNC, ASYNC }
+
+    static final Mode MODE = modeFromProperty();
+    static final boolean ENABLED = MODE != Mode.OFF;
+
+    // Must be a power of two, so a sequence number maps to a slot with a mask
+    static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+
+    // How the argument of a slot is stored
+    private static final byte NONE = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+
+    // The ring buffer: one template, one argument and its kind per slot
+    private static final String[] templates = new String[CAPACITY];
+    private static final long[] arguments = new long[CAPACITY];
+    private static final byte[] kinds = new byte[CAPACITY];
+    // published[slot] is the sequence number of the message in that slot once it is complete
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+    private static final AtomicLong next = new AtomicLong();  // next sequence to claim
+    private static volatile long consumed;                    // next sequence to write out
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        if (MODE == Mode.ASYNC) {
+            for (int i = 0; i < CAPACITY; i++) {
+                published.set(i, -1);
+            }
+            Thread flusher = new Thread(RingLog::flushLoop, "ringlog-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(RingLog::flush));
+        }
+    }
+
+    private RingLog() {
+    }
+
+    // Reads -Dringlog; a bad value must not stop every class that logs from loading
+    private static Mode modeFromProperty() {
+        String value = System.getProperty("ringlog", "off");
+        try {
+            return Mode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown -Dringlog mode \"" + value + "\", logging is off (use off, sync or async)");
+            return Mode.OFF;
+        }
+    }
+
+    static void log(String message) {
+        if (ENABLED) {
+            write(message, NONE, 0);
+        }
+    }
+
+    static void log(String template, long argument) {
+        if (ENABLED) {
+            write(template, LONG, argument);
+        }
+    }
+
+    static void log(String template, double argument) {
+        if (ENABLED) {
+            write(template, DOUBLE, Double.doubleToRawLongBits(argument));
+        }
+    }
+
+    // Messages lost because the buffer was full
+    static long dropped() {
+        return dropped.get();
+    }
+
+    // Waits until every message logged so far has been written
+    static void flush() {
+        if (MODE != Mode.ASYNC) {
+            return;
+        }
+        long target = next.get();
+        while (consumed < target) {
+            Thread.yield();
+        }
+        System.out.flush();
+    }
+
+    private static void write(String template, byte kind, long argument) {
+        if (MODE == Mode.SYNC) {
+            StringBuilder line = new StringBuilder(template.length() + 24);
+            format(line, template, kind, argument);
+            System.out.println(line);
+            return;
+        }
+        long sequence;
+        do {
+            sequence = next.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!next.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & MASK;
+        templates[slot] = template;
+        arguments[slot] = argument;
+        kinds[slot] = kind;
+        published.lazySet(slot, sequence); // makes the three writes above visible
+    }
+
+    // Runs on the background thread: collects every published message into one
+    // buffer and writes it with a single call, then waits a little for more
+    private static void flushLoop() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        long reportedDrops = 0;
+        while (true) {
+            long sequence = consumed;
+            int slot = (int) sequence & MASK;
+            while (published.get(slot) == sequence && batch.length() < 60 * 1024) {
+                format(batch, templates[slot], kinds[slot], arguments[slot]);
+                batch.append(System.lineSeparator());
+                templates[slot] = null;
+                sequence++;
+                slot = (int) sequence & MASK;
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                batch.append("[ringlog] ").append(drops - reportedDrops)
+                     .append(" messages dropped").append(System.lineSeparator());
+                reportedDrops = drops;
+            }
+            if (batch.length() > 0) {
+                byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+                System.out.write(bytes, 0, bytes.length);
+                System.out.flush();
+                batch.setLength(0);
+            }
+            boolean idle = sequence == consumed;
+            consumed = sequence; // frees the slots for the producers
+            if (idle) {
+                LockSupport.parkNanos(100_000); // 0.1 ms
+            }
+        }
+    }
+
+    // Replaces the first {} in the template with the argument
+    private static void format(StringBuilder out, String template, byte kind, long argument) {
+        int hole = kind == NONE ? -1 : template.indexOf("{}");
+        if (hole < 0) {
+            out.append(template);
+            return;
+        }
+        out.append(template, 0, hole);
+        if (kind == LONG) {
+            out.append(argument);
+        } else {
+            out.append(Double.longBitsToDouble(argument));
+        }
+        out.append(template, hole + 2, template.length());
+    }
+}
+
+public class RingLogDemo {
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("RingLog mode: " + RingLog.MODE + " (change it with -Dringlog=off|sync|async)");
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 5; i++) {
+                    RingLog.log("Worker finished step {}", id * 100L + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        RingLog.log("Average: {}", 2.5);
+        RingLog.flush();
+        System.out.println("Dropped messages: " + RingLog.dropped());
+    }
+}
@@ -0,0 +1,487 @@
+/* Account commands processed by one thread, handed over through a ring buffer
+   (the idea of the LMAX Disruptor).
+
+   When many threads deposit and withdraw with locks, a lot of the time goes
+   into handing the lock from thread to thread, and the account data moves
+   from core to core with it. CommandProcessor turns that around: the callers
+   (producers) only write a small command into a ring buffer, and one thread,
+   the business-logic thread, takes the commands out in order and applies them.
+   That thread is the only one that ever touches the balances, so they are a
+   plain long[] with no locks and no CAS, and stay in that core's cache.
+
+   The ring buffer is allocated once: a command is a row of a few arrays
+   (type, accounts, amount), so sending one allocates nothing. A producer
+   claims the next sequence number with one atomic increment, writes its row
+   and marks it published (like RingLog in ringlog.java). The business thread
+   takes every published command it finds in one batch, applies them, then
+   frees the batch's slots and wakes the batch's callers all at once.
+
+   A caller that wants the result passes a Completion (one per thread, reused)
+   and waits on it. How threads wait, for a free slot, for work, or for their
+   result, is the WaitStrategy:
+     BUSY_SPIN  keep checking: the lowest latency, but burns a whole core per
+                waiting thread; only for machines with cores to spare
+     YIELD      check, and let other threads run in between
+     PARK       spin briefly, then sleep until woken; the least CPU
+
+   Accounts are numbered 0 .. n - 1. Amounts are whole cents; the rules and
+   RingLog messages are those of BankAccount.deposit and withdraw. An amount
+   that would overflow a balance is refused as INVALID_AMOUNT. The worker
+   never lets an exception end it: a command that throws anyway is logged and
+   completed with FAILED, and the commands behind it still run.
+
+   close() stops new commands but applies every one already claimed. A
+   producer claims its sequence number before it checks whether the processor
+   is closed, so the worker either sees the claim and waits for it, or the
+   producer sees the close. In the second case the producer still fills its
+   slot, with a command that does nothing, and then throws; nobody is left
+   waiting for a slot that is never written.
+
+   Compile together with accountstore.java, concurrentaccount.java,
+   ringlog.java and microbench.java. */
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+enum WaitStrategy {
+    BUSY_SPIN {
+        @Override
+        void idle(int round) {
+            Thread.onSpinWait();
+        }
+    },
+    YIELD {
+        @Override
+        void idle(int round) {
+            if (round < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    },
+    PARK {
+        @Override
+        void idle(int round) {
+            if (round < 100) {
+                Thread.onSpinWait();
+            } else if (round < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+    };
+
+    // Called on every round of a wait loop that found nothing yet; round starts at 0
+    abstract void idle(int round);
+}
+
+class CommandProcessor implements AutoCloseable {
+    static final int DEPOSIT = 1;
+    static final int WITHDRAW = 2;
+    static final int TRANSFER = 3;
+    static final int BALANCE = 4;
+    private static final int NOTHING = 0; // fills a slot claimed after close
+
+    // Results
+    static final int OK = 0;
+    static final int INSUFFICIENT_BALANCE = 1;
+    static final int INVALID_AMOUNT = 2;
+    static final int NO_SUCH_ACCOUNT = 3;
+    static final int FAILED = 4;
+
+    static final int DEFAULT_CAPACITY = 1 << 14;
+
+    // Where a caller waits for its result; reuse one per thread
+    static final class Completion {
+        private volatile boolean done;
+        private volatile Thread waiter;
+        private int result;
+        private long value;
+
+        // The result code (OK, INSUFFICIENT_BALANCE, ...)
+        int result() {
+            return result;
+        }
+
+        // The balance in cents, for BALANCE commands
+        long value() {
+            return value;
+        }
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    // The ring: one row per slot
+    private final int[] types;
+    private final long[] firstAccounts;
+    private final long[] secondAccounts;
+    private final long[] amounts;
+    private final Completion[] completions;
+    private final AtomicLongArray published; // sequence number of the command in each slot once it is written
+
+    private final AtomicLong next = new AtomicLong(); // next sequence to claim
+    private volatile long processed;                  // every sequence below this one is done
+
+    // The accounts; only ever touched by the business-logic thread
+    private final long[] balances;
+
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long batches;
+    private volatile RuntimeException lastFailure;
+
+    CommandProcessor(int accounts, long initialCents, WaitStrategy waitStrategy) {
+        this(accounts, initialCents, waitStrategy, DEFAULT_CAPACITY);
+    }
+
+    // capacity is rounded up to a power of two
+    CommandProcessor(int accounts, long initialCents, WaitStrategy waitStrategy, int capacity) {
+        if (initialCents < 0) {
+            throw new IllegalArgumentException("Balance must be non-negative: " + initialCents);
+        }
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.mask = this.capacity - 1;
+        this.waitStrategy = waitStrategy;
+        types = new int[this.capacity];
+        firstAccounts = new long[this.capacity];
+        secondAccounts = new long[this.capacity];
+        amounts = new long[this.capacity];
+        completions = new Completion[this.capacity];
+        published = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            published.set(i, -1);
+        }
+        balances = new long[accounts];
+        java.util.Arrays.fill(balances, initialCents);
+        worker = new Thread(this::run, "command-processor");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // ---- producers ----
+
+    // Sends a command and returns its sequence number. If completion is not
+    // null it is filled in and marked done once the command has been applied.
+    long submit(int type, long firstAccount, long secondAccount, long cents, Completion completion) {
+        if (type < DEPOSIT || type > BALANCE) {
+            throw new IllegalArgumentException("Unknown command " + type);
+        }
+        // Claim first, then look at running: see the top of the file
+        long sequence = next.getAndIncrement();
+        boolean open = running;
+        // Wait for the slot to be free: the command capacity places back must be done
+        for (int round = 0; sequence - capacity >= processed; round++) {
+            waitStrategy.idle(round);
+        }
+        int slot = (int) sequence & mask;
+        if (!open) {
+            types[slot] = NOTHING;
+            completions[slot] = null;
+            published.lazySet(slot, sequence);
+            throw new IllegalStateException("Processor is closed");
+        }
+        if (completion != null) {
+            completion.done = false;
+        }
+        types[slot] = type;
+        firstAccounts[slot] = firstAccount;
+        secondAccounts[slot] = secondAccount;
+        amounts[slot] = cents;
+        completions[slot] = completion;
+        published.lazySet(slot, sequence); // makes the writes above visible to the worker
+        return sequence;
+    }
+
+    // Waits until the command is applied and returns its result
+    int await(Completion completion) {
+        for (int round = 0; !completion.done; round++) {
+            if (round == 200 && waitStrategy == WaitStrategy.PARK) {
+                completion.waiter = Thread.currentThread();
+                if (completion.done) {
+                    break;
+                }
+            }
+            waitStrategy.idle(round);
+        }
+        completion.waiter = null;
+        return completion.result;
+    }
+
+    // Waits until every command up to this sequence number is applied
+    void awaitProcessed(long sequence) {
+        for (int round = 0; processed <= sequence; round++) {
+            waitStrategy.idle(round);
+        }
+    }
+
+    // The calls below wait for their result, so they need a completion; a null
+    // one is refused before the command is sent, not after it was applied
+    int deposit(long account, long cents, Completion completion) {
+        submit(DEPOSIT, account, -1, cents, Objects.requireNonNull(completion, "completion"));
+        return await(completion);
+    }
+
+    int withdraw(long account, long cents, Completion completion) {
+        submit(WITHDRAW, account, -1, cents, Objects.requireNonNull(completion, "completion"));
+        return await(completion);
+    }
+
+    int transfer(long from, long to, long cents, Completion completion) {
+        submit(TRANSFER, from, to, cents, Objects.requireNonNull(completion, "completion"));
+        return await(completion);
+    }
+
+    long balance(long account, Completion completion) {
+        submit(BALANCE, account, -1, 0, Objects.requireNonNull(completion, "completion"));
+        await(completion);
+        return completion.value;
+    }
+
+    // The exception of the last command that ended with FAILED, or null
+    RuntimeException lastFailure() {
+        return lastFailure;
+    }
+
+    // How many batches the worker has applied (commands / batches = average batch size)
+    long batches() {
+        return batches;
+    }
+
+    // Stops taking commands, applies every one already claimed and stops the worker
+    @Override
+    public void close() {
+        running = false;
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---- the business-logic thread ----
+
+    private void run() {
+        Completion[] batch = new Completion[capacity];
+        long sequence = 0;
+        int round = 0;
+        while (running || sequence < next.get()) {
+            // Everything published in a row from here on is one batch
+            long end = sequence;
+            while (end - sequence < capacity && published.get((int) end & mask) == end) {
+                end++;
+            }
+            if (end == sequence) {
+                waitStrategy.idle(round++);
+                continue;
+            }
+            round = 0;
+            int count = 0;
+            for (long s = sequence; s < end; s++) {
+                int slot = (int) s & mask;
+                Completion completion = completions[slot];
+                int result;
+                try {
+                    result = apply(types[slot], firstAccounts[slot], secondAccounts[slot], amounts[slot],
+                            completion);
+                } catch (RuntimeException e) {
+                    lastFailure = e;
+                    RingLog.log("Command {} failed", s);
+                    result = FAILED;
+                }
+                if (completion != null) {
+                    completion.result = result;
+                    batch[count++] = completion;
+                    completions[slot] = null;
+                }
+            }
+            sequence = end;
+            processed = end; // the slots of the batch are free again
+            batches++;
+            // Wake the whole batch at the end, not one caller per command
+            for (int i = 0; i < count; i++) {
+                Completion completion = batch[i];
+                batch[i] = null;
+                completion.done = true;
+                Thread waiter = completion.waiter;
+                if (waiter != null) {
+                    LockSupport.unpark(waiter);
+                }
+            }
+        }
+    }
+
+    private int apply(int type, long first, long second, long cents, Completion completion) {
+        if (type == NOTHING) {
+            return OK;
+        }
+        if (first < 0 || first >= balances.length
+                || (type == TRANSFER && (second < 0 || second >= balances.length))) {
+            RingLog.log("No such account: {}", first < 0 || first >= balances.length ? first : second);
+            return NO_SUCH_ACCOUNT;
+        }
+        int account = (int) first;
+        switch (type) {
+            case DEPOSIT:
+                if (cents <= 0) {
+                    RingLog.log("Deposit amount must be positive.");
+                    return INVALID_AMOUNT;
+                }
+                if (cents > Long.MAX_VALUE - balances[account]) {
+                    RingLog.log("Deposit would overflow the balance.");
+                    return INVALID_AMOUNT;
+                }
+                balances[account] += cents;
+                RingLog.log("Successfully deposited: ${}", cents / 100.0);
+                return OK;
+            case WITHDRAW:
+                if (cents <= 0) {
+                    RingLog.log("Withdrawal amount must be positive.");
+                    return INVALID_AMOUNT;
+                }
+                if (cents > balances[account]) {
+                    RingLog.log("Insufficient balance.");
+                    return INSUFFICIENT_BALANCE;
+                }
+                balances[account] -= cents;
+                RingLog.log("Successfully withdrew: ${}", cents / 100.0);
+                return OK;
+            case TRANSFER:
+                if (cents <= 0) {
+                    RingLog.log("Transfer amount must be positive.");
+                    return INVALID_AMOUNT;
+                }
+                if (cents > balances[account]) {
+                    RingLog.log("Insufficient balance.");
+                    return INSUFFICIENT_BALANCE;
+                }
+                if (account != second && cents > Long.MAX_VALUE - balances[(int) second]) {
+                    RingLog.log("Transfer would overflow the balance.");
+                    return INVALID_AMOUNT;
+                }
+                balances[account] -= cents;
+                balances[(int) second] += cents;
+                RingLog.log("Successfully transferred: ${}", cents / 100.0);
+                return OK;
+            case BALANCE:
+                if (completion != null) {
+                    completion.value = balances[account];
+                }
+                return OK;
+            default:
+                throw new IllegalStateException("Unknown command " + type);
+        }
+    }
+}
+
+public class CommandProcessorDemo {
+    static final int ACCOUNTS = 10_000;
+    static final int THREADS = 4;
+    static final int OPERATIONS_PER_THREAD = 200_000;
+
+    public static void main(String[] args) {
+        try (CommandProcessor processor = new CommandProcessor(2, 50_000, WaitStrategy.PARK)) {
+            CommandProcessor.Completion done = new CommandProcessor.Completion();
+            System.out.println("Deposit $200 into 0: " + result(processor.deposit(0, 20_000, done)));
+            System.out.println("Withdraw $2000 from 1: " + result(processor.withdraw(1, 200_000, done)));
+            System.out.println("Transfer $300 from 0 to 1: " + result(processor.transfer(0, 1, 30_000, done)));
+            System.out.println("Deposit " + Long.MAX_VALUE + " cents into 0: "
+                    + result(processor.deposit(0, Long.MAX_VALUE, done)));
+            System.out.println("Deposit 5 cents into 0: " + result(processor.deposit(0, 5, done)));
+            System.out.println("Balances: 0 -> " + processor.balance(0, done) + " cents, 1 -> "
+                    + processor.balance(1, done) + " cents");
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("Cores: " + cores + "; " + THREADS + " threads, each waits for every result");
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            if (strategy == WaitStrategy.BUSY_SPIN && cores <= THREADS) {
+                System.out.println(strategy + ": skipped, it needs a free core for every spinning thread");
+                continue;
+            }
+            try (CommandProcessor processor = new CommandProcessor(ACCOUNTS, 100_000, strategy)) {
+                long start = System.nanoTime();
+                ConcurrentAccountDemo.runThreads(THREADS, () -> {
+                    CommandProcessor.Completion completion = new CommandProcessor.Completion();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        processor.transfer(random.nextInt(ACCOUNTS), random.nextInt(ACCOUNTS),
+                                1 + random.nextInt(5000), completion);
+                    }
+                    return 0;
+                });
+                long nanos = System.nanoTime() - start;
+                long total = 0;
+                CommandProcessor.Completion completion = new CommandProcessor.Completion();
+                for (int id = 0; id < ACCOUNTS; id++) {
+                    total += processor.balance(id, completion);
+                }
+                System.out.printf("%-10s %6.2f M transfers/s, %.1f commands per batch, money kept: %b%n",
+                        strategy, THREADS * (double) OPERATIONS_PER_THREAD * 1e3 / nanos,
+                        (THREADS * (double) OPERATIONS_PER_THREAD + ACCOUNTS) / processor.batches(),
+                        total == (long) ACCOUNTS * 100_000);
+            }
+
+            // Callers that do not need each result right away: send without a
+            // completion and only wait for every 1000th command
+            try (CommandProcessor processor = new CommandProcessor(ACCOUNTS, 100_000, strategy)) {
+                long start = System.nanoTime();
+                ConcurrentAccountDemo.runThreads(THREADS, () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long last = 0;
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        last = processor.submit(CommandProcessor.TRANSFER, random.nextInt(ACCOUNTS),
+                                random.nextInt(ACCOUNTS), 1 + random.nextInt(5000), null);
+                        if (i % 1000 == 999) {
+                            processor.awaitProcessed(last);
+                        }
+                    }
+                    processor.awaitProcessed(last);
+                    return 0;
+                });
+                long nanos = System.nanoTime() - start;
+                System.out.printf("%-10s %6.2f M transfers/s, %.1f commands per batch (pipelined)%n",
+                        strategy, THREADS * (double) OPERATIONS_PER_THREAD * 1e3 / nanos,
+                        THREADS * (double) OPERATIONS_PER_THREAD / processor.batches());
+            }
+        }
+
+        // The same transfers through the lock-striped store
+        AccountStore store = new AccountStore();
+        for (long id = 0; id < ACCOUNTS; id++) {
+            store.open(id, "Holder " + id, 1000.0);
+        }
+        long start = System.nanoTime();
+        ConcurrentAccountDemo.runThreads(THREADS, () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                store.transferCents(random.nextInt(ACCOUNTS), random.nextInt(ACCOUNTS), 1 + random.nextInt(5000));
+            }
+            return 0;
+        });
+        long nanos = System.nanoTime() - start;
+        System.out.printf("%-10s %6.2f M transfers/s%n", "locks",
+                THREADS * (double) OPERATIONS_PER_THREAD * 1e3 / nanos);
+    }
+
+    static String result(int code) {
+        switch (code) {
+            case CommandProcessor.OK:
+                return "ok";
+            case CommandProcessor.INSUFFICIENT_BALANCE:
+                return "insufficient balance";
+            case CommandProcessor.INVALID_AMOUNT:
+                return "invalid amount";
+            case CommandProcessor.FAILED:
+                return "failed";
+            default:
+                return "no such account";
+        }
+    }
+}
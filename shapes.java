@@ -0,0 +1,583 @@
+/* The Shape hierarchy from Polymorphosism.java as real classes, with geometry,
+   plus a ShapeBatch that works on many shapes without one virtual call per shape.
+
+   In a loop like
+       for (Shape shape : shapes) shape.draw();
+   the call shape.draw() sees Circles, Rectangles and maybe more kinds. Once
+   it has seen three or more classes the JIT gives up inlining it and makes a
+   full virtual call for every shape (see dispatchbench.java).
+
+   ShapeBatch sorts the shapes by their exact class when they are added and
+   keeps each group in its own arrays ("structure of arrays", or columns: one
+   array per field instead of one object per shape). A circle is a row in the
+   columns x, y, radius; a rectangle a row in x, y, width, height. Drawing,
+   total area, bounding box and size filters then run one simple loop per
+   group over plain double arrays. Those loops have no calls and no type
+   checks and read memory in order, and the area sums keep four running
+   totals so several additions are in flight at once. They are still scalar
+   loops: the JIT does not turn a sum of doubles into vector instructions,
+   because that would change the order of the additions and so the result.
+   The bigger loops can also be split over a ForkJoinPool. Shapes of other
+   classes still work through normal virtual calls.
+
+   A batch draws group by group: first all circles, then all rectangles, then
+   the others, so the order between different kinds of shapes is not kept.
+
+   draw(Canvas, color) paints a shape into the pixel canvas of canvas.java.
+   Compile together with canvas.java, spatialindex.java and microbench.java. */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+class Shape {
+    public void draw() {
+        System.out.println(text());
+    }
+
+    // What draw() prints
+    public String text() {
+        return "Drawing a shape";
+    }
+
+    // A plain Shape has no size
+    public double area() {
+        return 0.0;
+    }
+
+    public Bounds bounds() {
+        return Bounds.EMPTY;
+    }
+
+    // Whether the point (x, y) is inside the shape
+    public boolean contains(double x, double y) {
+        return false;
+    }
+
+    // Whether the shape overlaps the box
+    public boolean intersects(Bounds box) {
+        return false;
+    }
+
+    // Paints the shape into a canvas (see canvas.java)
+    public void draw(Canvas canvas, int color) {
+        draw(canvas, color, 0, 0, canvas.width(), canvas.height());
+    }
+
+    // Paints only the pixels with clipX0 <= x < clipX1 and clipY0 <= y < clipY1.
+    // A plain Shape has no pixels.
+    public void draw(Canvas canvas, int color, int clipX0, int clipY0, int clipX1, int clipY1) {
+    }
+}
+
+class Circle extends Shape {
+    static final String TEXT = "Drawing a circle";
+
+    private final double x;
+    private final double y;
+    private final double radius;
+
+    // A unit circle at the origin
+    Circle() {
+        this(0, 0, 1);
+    }
+
+    Circle(double x, double y, double radius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("Radius must not be negative: " + radius);
+        }
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    @Override
+    public void draw() {
+        System.out.println(TEXT);
+    }
+
+    @Override
+    public String text() {
+        return TEXT;
+    }
+
+    @Override
+    public double area() {
+        return Math.PI * radius * radius;
+    }
+
+    @Override
+    public Bounds bounds() {
+        return new Bounds(x - radius, y - radius, x + radius, y + radius);
+    }
+
+    @Override
+    public boolean contains(double px, double py) {
+        double dx = px - x;
+        double dy = py - y;
+        return dx * dx + dy * dy <= radius * radius;
+    }
+
+    @Override
+    public void draw(Canvas canvas, int color, int clipX0, int clipY0, int clipX1, int clipY1) {
+        canvas.fillCircle(x, y, radius, color, clipX0, clipY0, clipX1, clipY1);
+    }
+
+    // The point of the box closest to the centre must be inside the circle
+    @Override
+    public boolean intersects(Bounds box) {
+        double dx = x - Math.max(box.minX, Math.min(x, box.maxX));
+        double dy = y - Math.max(box.minY, Math.min(y, box.maxY));
+        return dx * dx + dy * dy <= radius * radius;
+    }
+}
+
+class Rectangle extends Shape {
+    static final String TEXT = "Drawing a rectangle";
+
+    // (x, y) is the corner with the smallest coordinates
+    private final double x;
+    private final double y;
+    private final double width;
+    private final double height;
+
+    // A unit square at the origin
+    Rectangle() {
+        this(0, 0, 1, 1);
+    }
+
+    Rectangle(double x, double y, double width, double height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Size must not be negative: " + width + " x " + height);
+        }
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    @Override
+    public void draw() {
+        System.out.println(TEXT);
+    }
+
+    @Override
+    public String text() {
+        return TEXT;
+    }
+
+    @Override
+    public double area() {
+        return width * height;
+    }
+
+    @Override
+    public Bounds bounds() {
+        return new Bounds(x, y, x + width, y + height);
+    }
+
+    @Override
+    public boolean contains(double px, double py) {
+        return px >= x && px <= x + width && py >= y && py <= y + height;
+    }
+
+    @Override
+    public boolean intersects(Bounds box) {
+        return bounds().overlaps(box);
+    }
+
+    @Override
+    public void draw(Canvas canvas, int color, int clipX0, int clipY0, int clipX1, int clipY1) {
+        canvas.fillRectangle(x, y, width, height, color, clipX0, clipY0, clipX1, clipY1);
+    }
+}
+
+// An axis-aligned bounding box
+class Bounds {
+    static final Bounds EMPTY = new Bounds(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+
+    final double minX;
+    final double minY;
+    final double maxX;
+    final double maxY;
+
+    Bounds(double minX, double minY, double maxX, double maxY) {
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    boolean isEmpty() {
+        return minX > maxX || minY > maxY;
+    }
+
+    boolean overlaps(Bounds other) {
+        return minX <= other.maxX && other.minX <= maxX
+            && minY <= other.maxY && other.minY <= maxY;
+    }
+
+    // The smallest box around both
+    Bounds union(Bounds other) {
+        return new Bounds(Math.min(minX, other.minX), Math.min(minY, other.minY),
+                Math.max(maxX, other.maxX), Math.max(maxY, other.maxY));
+    }
+
+    @Override
+    public String toString() {
+        return isEmpty() ? "empty" : "(" + minX + ", " + minY + ") - (" + maxX + ", " + maxY + ")";
+    }
+}
+
+class ShapeBatch {
+    // Below this many rows a parallel pass is not worth splitting
+    static final int CHUNK = 1 << 14;
+
+    // Circle columns; ids are the positions in the order the shapes were added
+    private int[] circleIds = new int[16];
+    private double[] circleX = new double[16];
+    private double[] circleY = new double[16];
+    private double[] circleRadius = new double[16];
+    private int circleCount;
+
+    // Rectangle columns
+    private int[] rectangleIds = new int[16];
+    private double[] rectangleX = new double[16];
+    private double[] rectangleY = new double[16];
+    private double[] rectangleWidth = new double[16];
+    private double[] rectangleHeight = new double[16];
+    private int rectangleCount;
+
+    // Any other kind of shape is kept as an object and used through virtual calls
+    private final List<Shape> others = new ArrayList<>();
+    private final List<Integer> otherIds = new ArrayList<>();
+
+    private int size;
+
+    // Adds a shape and returns its id (its position in the order of adding).
+    // Circles and rectangles are copied into the columns; the object is not kept.
+    public int add(Shape shape) {
+        int id = size++;
+        // getClass() == ... and not instanceof: a subclass of Circle might behave differently
+        if (shape.getClass() == Circle.class) {
+            Circle circle = (Circle) shape;
+            addCircle(id, circle.getX(), circle.getY(), circle.getRadius());
+        } else if (shape.getClass() == Rectangle.class) {
+            Rectangle rectangle = (Rectangle) shape;
+            addRectangle(id, rectangle.getX(), rectangle.getY(),
+                    rectangle.getWidth(), rectangle.getHeight());
+        } else {
+            others.add(shape);
+            otherIds.add(id);
+        }
+        return id;
+    }
+
+    // Adds a circle without creating a Circle object
+    public int addCircle(double x, double y, double radius) {
+        int id = size++;
+        addCircle(id, x, y, radius);
+        return id;
+    }
+
+    // Adds a rectangle without creating a Rectangle object
+    public int addRectangle(double x, double y, double width, double height) {
+        int id = size++;
+        addRectangle(id, x, y, width, height);
+        return id;
+    }
+
+    private void addCircle(int id, double x, double y, double radius) {
+        if (circleCount == circleIds.length) {
+            int capacity = circleCount * 2;
+            circleIds = Arrays.copyOf(circleIds, capacity);
+            circleX = Arrays.copyOf(circleX, capacity);
+            circleY = Arrays.copyOf(circleY, capacity);
+            circleRadius = Arrays.copyOf(circleRadius, capacity);
+        }
+        circleIds[circleCount] = id;
+        circleX[circleCount] = x;
+        circleY[circleCount] = y;
+        circleRadius[circleCount] = radius;
+        circleCount++;
+    }
+
+    private void addRectangle(int id, double x, double y, double width, double height) {
+        if (rectangleCount == rectangleIds.length) {
+            int capacity = rectangleCount * 2;
+            rectangleIds = Arrays.copyOf(rectangleIds, capacity);
+            rectangleX = Arrays.copyOf(rectangleX, capacity);
+            rectangleY = Arrays.copyOf(rectangleY, capacity);
+            rectangleWidth = Arrays.copyOf(rectangleWidth, capacity);
+            rectangleHeight = Arrays.copyOf(rectangleHeight, capacity);
+        }
+        rectangleIds[rectangleCount] = id;
+        rectangleX[rectangleCount] = x;
+        rectangleY[rectangleCount] = y;
+        rectangleWidth[rectangleCount] = width;
+        rectangleHeight[rectangleCount] = height;
+        rectangleCount++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int circleCount() {
+        return circleCount;
+    }
+
+    public int rectangleCount() {
+        return rectangleCount;
+    }
+
+    // ---- drawing ----
+
+    // Draws every shape into out, one line per shape
+    public void drawAll(StringBuilder out) {
+        for (int i = 0; i < circleCount; i++) {
+            out.append(Circle.TEXT).append('\n');
+        }
+        for (int i = 0; i < rectangleCount; i++) {
+            out.append(Rectangle.TEXT).append('\n');
+        }
+        for (Shape shape : others) {
+            out.append(shape.text()).append('\n');
+        }
+    }
+
+    // Draws every shape to System.out with a single write
+    public void drawAll() {
+        StringBuilder out = new StringBuilder(size * 20);
+        drawAll(out);
+        System.out.print(out);
+    }
+
+    // ---- total area ----
+
+    public double totalArea() {
+        return circleArea(0, circleCount) + rectangleArea(0, rectangleCount) + otherArea();
+    }
+
+    // Same as totalArea(), with the columns split over the pool's threads.
+    // The partial sums are added in a different order, so the last bits can differ.
+    public double totalArea(ForkJoinPool pool) {
+        return pool.submit(() ->
+                IntStream.range(0, chunks(circleCount)).parallel()
+                        .mapToDouble(c -> circleArea(c * CHUNK, Math.min((c + 1) * CHUNK, circleCount)))
+                        .sum()
+                + IntStream.range(0, chunks(rectangleCount)).parallel()
+                        .mapToDouble(c -> rectangleArea(c * CHUNK, Math.min((c + 1) * CHUNK, rectangleCount)))
+                        .sum()).join()
+                + otherArea();
+    }
+
+    // Four separate running sums, so the additions do not all wait for each other
+    private double circleArea(int from, int to) {
+        double[] r = circleRadius;
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            s0 += r[i] * r[i];
+            s1 += r[i + 1] * r[i + 1];
+            s2 += r[i + 2] * r[i + 2];
+            s3 += r[i + 3] * r[i + 3];
+        }
+        for (; i < to; i++) {
+            s0 += r[i] * r[i];
+        }
+        return Math.PI * ((s0 + s1) + (s2 + s3));
+    }
+
+    private double rectangleArea(int from, int to) {
+        double[] w = rectangleWidth;
+        double[] h = rectangleHeight;
+        double s0 = 0;
+        double s1 = 0;
+        double s2 = 0;
+        double s3 = 0;
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            s0 += w[i] * h[i];
+            s1 += w[i + 1] * h[i + 1];
+            s2 += w[i + 2] * h[i + 2];
+            s3 += w[i + 3] * h[i + 3];
+        }
+        for (; i < to; i++) {
+            s0 += w[i] * h[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private double otherArea() {
+        double sum = 0;
+        for (Shape shape : others) {
+            sum += shape.area();
+        }
+        return sum;
+    }
+
+    // ---- bounding box ----
+
+    // The smallest box around every shape
+    public Bounds bounds() {
+        Bounds result = circleBounds(0, circleCount).union(rectangleBounds(0, rectangleCount));
+        for (Shape shape : others) {
+            result = result.union(shape.bounds());
+        }
+        return result;
+    }
+
+    public Bounds bounds(ForkJoinPool pool) {
+        Bounds result = pool.submit(() ->
+                IntStream.range(0, chunks(circleCount)).parallel()
+                        .mapToObj(c -> circleBounds(c * CHUNK, Math.min((c + 1) * CHUNK, circleCount)))
+                        .reduce(Bounds.EMPTY, Bounds::union)
+                        .union(IntStream.range(0, chunks(rectangleCount)).parallel()
+                                .mapToObj(c -> rectangleBounds(c * CHUNK, Math.min((c + 1) * CHUNK, rectangleCount)))
+                                .reduce(Bounds.EMPTY, Bounds::union))).join();
+        for (Shape shape : others) {
+            result = result.union(shape.bounds());
+        }
+        return result;
+    }
+
+    private Bounds circleBounds(int from, int to) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            double r = circleRadius[i];
+            minX = Math.min(minX, circleX[i] - r);
+            minY = Math.min(minY, circleY[i] - r);
+            maxX = Math.max(maxX, circleX[i] + r);
+            maxY = Math.max(maxY, circleY[i] + r);
+        }
+        return new Bounds(minX, minY, maxX, maxY);
+    }
+
+    private Bounds rectangleBounds(int from, int to) {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            minX = Math.min(minX, rectangleX[i]);
+            minY = Math.min(minY, rectangleY[i]);
+            maxX = Math.max(maxX, rectangleX[i] + rectangleWidth[i]);
+            maxY = Math.max(maxY, rectangleY[i] + rectangleHeight[i]);
+        }
+        return new Bounds(minX, minY, maxX, maxY);
+    }
+
+    // ---- filtering ----
+
+    // Ids of the shapes whose area is between minArea and maxArea (both included),
+    // circles first, then rectangles, then the others
+    public int[] idsWithArea(double minArea, double maxArea) {
+        int[] result = new int[size];
+        int count = 0;
+        // The area is computed exactly as Circle.area() does (PI * r * r), so a
+        // circle right at a bound is kept or dropped the same way
+        for (int i = 0; i < circleCount; i++) {
+            double area = Math.PI * circleRadius[i] * circleRadius[i];
+            result[count] = circleIds[i];
+            count += (area >= minArea && area <= maxArea) ? 1 : 0;
+        }
+        for (int i = 0; i < rectangleCount; i++) {
+            double area = rectangleWidth[i] * rectangleHeight[i];
+            result[count] = rectangleIds[i];
+            count += (area >= minArea && area <= maxArea) ? 1 : 0;
+        }
+        for (int i = 0; i < others.size(); i++) {
+            double area = others.get(i).area();
+            if (area >= minArea && area <= maxArea) {
+                result[count++] = otherIds.get(i);
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int chunks(int rows) {
+        return (rows + CHUNK - 1) / CHUNK;
+    }
+}
+
+public class ShapeBatchDemo {
+    public static void main(String[] args) {
+        Shape[] shapes = {new Circle(0, 0, 1), new Rectangle(2, 2, 3, 4), new Shape(),
+                          new Circle(10, -5, 2), new Rectangle()};
+
+        System.out.println("One virtual call per shape:");
+        for (Shape shape : shapes) {
+            shape.draw();
+        }
+
+        ShapeBatch batch = new ShapeBatch();
+        for (Shape shape : shapes) {
+            batch.add(shape);
+        }
+        System.out.println("Grouped by type (" + batch.circleCount() + " circles, "
+                + batch.rectangleCount() + " rectangles):");
+        batch.drawAll();
+
+        System.out.println("Total area: " + batch.totalArea());
+        System.out.println("Bounds: " + batch.bounds());
+        System.out.println("Ids with area between 1 and 13: "
+                + Arrays.toString(batch.idsWithArea(1, 13)));
+
+        // A few million shapes, straight into the columns
+        ShapeBatch big = new ShapeBatch();
+        java.util.Random random = new java.util.Random(17);
+        for (int i = 0; i < 2_000_000; i++) {
+            if (random.nextBoolean()) {
+                big.addCircle(random.nextDouble() * 1000, random.nextDouble() * 1000, random.nextDouble());
+            } else {
+                big.addRectangle(random.nextDouble() * 1000, random.nextDouble() * 1000,
+                        random.nextDouble(), random.nextDouble());
+            }
+        }
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        System.out.println("2M shapes, total area " + big.totalArea()
+                + " (parallel: " + big.totalArea(pool) + ")");
+        System.out.println("2M shapes, bounds " + big.bounds(pool));
+        long area = MicroBench.bestNanos(() -> big.totalArea());
+        long bounds = MicroBench.bestNanos(() -> big.bounds().maxX);
+        System.out.printf("total area %.2f ms, bounds %.2f ms%n", area / 1e6, bounds / 1e6);
+    }
+}
@@ -0,0 +1,357 @@
+/* Snapshots of the ledger accounts, so a restart does not replay the whole ledger.
+
+   LedgerAccounts (ledger.java) rebuilds its balances by replaying every record
+   ever written. That takes longer and longer as the ledger grows. A snapshot
+   is a file with the holder name and balance of every account, as they were
+   after one record of the ledger. On restart the latest snapshot is read and
+   only the records after it (the tail) are replayed.
+
+   The file is binary, little-endian:
+
+       header   int   magic ("SNAP")
+                int   version
+                long  ledger sequence number the snapshot belongs to
+       records  long  account id
+                long  balance in cents
+                short length of the holder name in bytes
+                ...   holder name, UTF-8
+       trailer  long  number of records
+                int   CRC32C checksum of everything before it
+
+   The records are written as the accounts are visited, so the count and the
+   checksum go at the end. The file is first written under a temporary name,
+   forced to disk and then renamed, so a crash while writing leaves either the
+   old snapshot or the new one, never half a file. The rename itself is only
+   an entry in the directory, so the directory is forced to disk too, where
+   the platform allows it. A file whose checksum does not match is skipped
+   and the one before it is used; latest() hands the skipped files to the
+   caller, and LedgerAccounts counts them (skippedSnapshots()).
+
+   A restart reads the snapshot and then only the ledger records after it:
+   Ledger.open checks the records from the snapshot's sequence number on,
+   not the whole history, and the segments older than the oldest snapshot
+   kept are deleted. So the cost of a restart depends on the number of
+   accounts and the length of the tail, not on how long the ledger has been
+   written to.
+
+   Reading maps the file into memory (see mappedsum.java) instead of copying it
+   into a buffer first.
+
+   How LedgerAccounts takes a snapshot while deposits go on (copy-on-write)
+   is explained there.
+
+   Compile together with ledger.java, concurrentaccount.java, ringlog.java and
+   microbench.java. */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+class AccountSnapshot {
+    static final int MAGIC = 0x50414E53; // "SNAP" in a little-endian file
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int TRAILER_SIZE = 12;
+    static final int MAX_NAME_BYTES = 0xFFFF;
+    // Snapshots kept in the directory; older ones are deleted
+    static final int KEEP = 2;
+
+    // What forEach hands over for every account
+    interface AccountHandler {
+        void account(long id, long cents, String holderName);
+    }
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final long sequence;
+    private final long count;
+
+    private AccountSnapshot(Path file, MappedByteBuffer buffer, long sequence, long count) {
+        this.file = file;
+        this.buffer = buffer;
+        this.sequence = sequence;
+        this.count = count;
+    }
+
+    Path file() {
+        return file;
+    }
+
+    // The ledger sequence number the balances belong to: replay records after it
+    long sequence() {
+        return sequence;
+    }
+
+    long count() {
+        return count;
+    }
+
+    // Visits every account of the snapshot, in file order
+    void forEach(AccountHandler handler) {
+        int offset = HEADER_SIZE;
+        for (long i = 0; i < count; i++) {
+            long id = buffer.getLong(offset);
+            long cents = buffer.getLong(offset + 8);
+            int length = Short.toUnsignedInt(buffer.getShort(offset + 16));
+            byte[] name = new byte[length];
+            buffer.get(offset + 18, name);
+            handler.account(id, cents, new String(name, StandardCharsets.UTF_8));
+            offset += 18 + length;
+        }
+    }
+
+    // Maps the file and checks it. Throws IOException if it is cut off or damaged.
+    static AccountSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot has a bad size: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int end = (int) size - TRAILER_SIZE;
+            CRC32C check = new CRC32C();
+            check.update(buffer.slice(0, end + 8));
+            if ((int) check.getValue() != buffer.getInt(end + 8)) {
+                throw new IOException("Snapshot checksum does not match: " + file);
+            }
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a snapshot of version " + VERSION + ": " + file);
+            }
+            return new AccountSnapshot(file, buffer, buffer.getLong(8), buffer.getLong(end));
+        }
+    }
+
+    // The newest snapshot in the directory that reads back fine, or null if there is none
+    static AccountSnapshot latest(Path directory) throws IOException {
+        return latest(directory, new ArrayList<>());
+    }
+
+    // The same, adding every newer file that was skipped because it is damaged to skipped
+    static AccountSnapshot latest(Path directory, List<Path> skipped) throws IOException {
+        List<Path> files = snapshotFiles(directory);
+        Collections.reverse(files);
+        for (Path file : files) {
+            try {
+                return read(file);
+            } catch (IOException e) {
+                skipped.add(file);
+                RingLog.log("Skipping damaged snapshot after record {}", sequenceOf(file));
+            }
+        }
+        return null;
+    }
+
+    // The ledger sequence number in the name of a snapshot file
+    static long sequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring("snapshot-".length(), name.length() - ".snap".length()));
+    }
+
+    // The snapshot files in order; the name holds the sequence number, zero-padded
+    static List<Path> snapshotFiles(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().matches("snapshot-\\d{19}\\.snap"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Writes a snapshot file record by record. Nothing is visible under the
+    // final name until commit() is called.
+    static final class Writer implements AutoCloseable {
+        private final Path directory;
+        private final long sequence;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private final CRC32C crc = new CRC32C();
+        private long count;
+        private boolean committed;
+
+        Writer(Path directory, long sequence) throws IOException {
+            this.directory = directory;
+            this.sequence = sequence;
+            this.temporary = directory.resolve(String.format("snapshot-%019d.tmp", sequence));
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(sequence);
+        }
+
+        void add(long id, long cents, String holderName) throws IOException {
+            byte[] name = holderName == null ? new byte[0] : holderName.getBytes(StandardCharsets.UTF_8);
+            if (name.length > MAX_NAME_BYTES) {
+                throw new IllegalArgumentException("Holder name of account " + id + " is too long");
+            }
+            if (buffer.remaining() < 18 + name.length) {
+                flush();
+            }
+            buffer.putLong(id).putLong(cents).putShort((short) name.length).put(name);
+            count++;
+        }
+
+        // Finishes the file, forces it to disk, gives it its final name and
+        // deletes the snapshots older than the last KEEP
+        Path commit() throws IOException {
+            if (buffer.remaining() < TRAILER_SIZE) {
+                flush();
+            }
+            buffer.putLong(count);
+            flush();
+            buffer.putInt((int) crc.getValue());
+            flush();
+            channel.force(true);
+            channel.close();
+            Path target = directory.resolve(String.format("snapshot-%019d.snap", sequence));
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+            forceDirectory(directory);
+            List<Path> files = snapshotFiles(directory);
+            for (int i = 0; i < files.size() - KEEP; i++) {
+                Files.deleteIfExists(files.get(i));
+            }
+            return target;
+        }
+
+        // Makes the rename durable. Some platforms cannot open a directory as a
+        // channel; there the rename is as durable as the file system makes it.
+        private static void forceDirectory(Path directory) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // not supported here
+            }
+        }
+
+        // Without commit() the temporary file is thrown away
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
+
+public class SnapshotDemo {
+    static final int ACCOUNTS = 100_000;
+    static final int HISTORY = 3_000_000;
+    static final int THREADS = 8;
+    static final int OPERATIONS_PER_THREAD = 4_000;
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("snapshot");
+        try {
+            // A long history, written straight into the ledger
+            try (Ledger ledger = Ledger.open(directory)) {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long[] balances = new long[ACCOUNTS];
+                for (int id = 0; id < ACCOUNTS; id++) {
+                    balances[id] = 10_000;
+                    ledger.append(Ledger.SET_BALANCE, id, balances[id]);
+                }
+                for (int i = 0; i < HISTORY; i++) {
+                    int id = random.nextInt(ACCOUNTS);
+                    long cents = 1 + random.nextInt(500);
+                    if (random.nextBoolean()) {
+                        balances[id] += cents;
+                        ledger.append(Ledger.DEPOSIT, id, cents);
+                    } else if (balances[id] >= cents) {
+                        balances[id] -= cents;
+                        ledger.append(Ledger.WITHDRAW, id, cents);
+                    }
+                }
+                ledger.sync();
+            }
+
+            // Start without a snapshot: every record is replayed
+            long start = System.nanoTime();
+            long[] expected = new long[ACCOUNTS];
+            try (LedgerAccounts bank = LedgerAccounts.open(directory, Ledger.DEFAULT_LATENCY_BUDGET_NANOS)) {
+                System.out.printf("Full replay: %,d records in %.1f ms%n",
+                        bank.replayedRecords(), (System.nanoTime() - start) / 1e6);
+
+                // Durable deposits and withdrawals from many threads, with a
+                // snapshot every 100 ms taken while they run
+                bank.startSnapshots(100);
+                start = System.nanoTime();
+                ConcurrentAccountDemo.runThreads(THREADS, () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                        int id = random.nextInt(ACCOUNTS);
+                        if (random.nextBoolean()) {
+                            bank.deposit(id, 0.25);
+                        } else {
+                            bank.withdraw(id, 0.10);
+                        }
+                    }
+                    return 0;
+                });
+                System.out.printf("Traffic: %,d durable operations in %.1f ms, %d snapshots taken meanwhile, "
+                                + "%d failed%n", THREADS * OPERATIONS_PER_THREAD, (System.nanoTime() - start) / 1e6,
+                        bank.snapshots(), bank.snapshotFailures());
+                for (int id = 0; id < ACCOUNTS; id++) {
+                    expected[id] = bank.balanceCents(id);
+                }
+            }
+            AccountSnapshot latest = AccountSnapshot.latest(directory);
+            System.out.printf("Latest snapshot: %,d accounts after record %,d, %,d bytes; "
+                            + "ledger kept from record %,d%n", latest.count(), latest.sequence(),
+                    Files.size(latest.file()), Ledger.firstKeptSequence(directory));
+
+            // Restart from the snapshot and the tail of the ledger
+            start = System.nanoTime();
+            try (LedgerAccounts restarted = LedgerAccounts.open(directory, Ledger.DEFAULT_LATENCY_BUDGET_NANOS)) {
+                long nanos = System.nanoTime() - start;
+                boolean same = true;
+                for (int id = 0; id < ACCOUNTS; id++) {
+                    same &= restarted.balanceCents(id) == expected[id];
+                }
+                System.out.printf("Snapshot + tail: %,d records replayed in %.1f ms, balances match: %b%n",
+                        restarted.replayedRecords(), nanos / 1e6, same);
+            }
+
+            // A damaged latest snapshot is skipped: the one before it and a longer tail are used
+            try (FileChannel channel = FileChannel.open(latest.file(), StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[] {42}), AccountSnapshot.HEADER_SIZE + 3);
+            }
+            try (LedgerAccounts restarted = LedgerAccounts.open(directory, Ledger.DEFAULT_LATENCY_BUDGET_NANOS)) {
+                boolean same = true;
+                for (int id = 0; id < ACCOUNTS; id++) {
+                    same &= restarted.balanceCents(id) == expected[id];
+                }
+                System.out.printf("After damaging it: %d snapshot skipped, %,d records replayed, "
+                        + "balances match: %b%n", restarted.skippedSnapshots(), restarted.replayedRecords(), same);
+            }
+        } finally {
+            LedgerDemo.deleteAll(directory);
+        }
+    }
+}
@@ -0,0 +1,714 @@
+/* A spatial index for the shapes in shapes.java: "which shapes contain this
+   point?", "which shapes overlap this rectangle?" and "which shapes touch
+   each other?" without calling into every shape.
+
+   ShapeGrid lays a grid of square cells over the plane. Every shape is listed
+   in each cell its bounding box covers. A point query then only looks at the
+   shapes of one cell, and a rectangle query at the shapes of the cells under
+   the rectangle, instead of at all of them. Only those few candidates get the
+   exact test (Shape.contains / Shape.intersects). The cells live in a small
+   hash table keyed by their (column, row), so the plane has no fixed size
+   and empty cells cost nothing.
+
+   The grid works best when the cell is a bit bigger than a typical shape.
+   bulkLoad picks the cell size from the shapes it is given; a shape much
+   bigger than a cell is simply listed in many cells. A shape that would be
+   in more than MAX_CELLS_PER_SHAPE cells (a huge or infinite one) is kept in
+   a separate list instead, which every query looks at. Cell numbers are
+   clamped to +-2^30, so infinite coordinates still give a finite range, and
+   a rectangle query that covers more cells than the table holds walks the
+   table instead of the rectangle.
+
+   collisionPairs() finds every pair of shapes whose bounding boxes overlap
+   with "sweep and prune": sort the boxes by their left edge, walk from left
+   to right, and compare each box only with the boxes that have not ended yet.
+   This is the broad phase of collision detection; the exact shape test is
+   left to the caller.
+
+   Ids are handed out by insert, starting at 0. The id of a removed shape is
+   kept in a free list and handed out again by a later insert, so a grid that
+   keeps inserting and removing does not grow. A ShapeGrid is not
+   thread-safe, not even for queries.
+
+   Compile together with shapes.java and microbench.java. */
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+class ShapeGrid {
+    // Cell numbers stop here, so "column <= last; column++" cannot overflow
+    static final int MAX_CELL = 1 << 30;
+    // Bigger shapes go into the oversized list instead of the cells
+    static final long MAX_CELLS_PER_SHAPE = 4096;
+
+    // The shapes and their boxes, by id; a removed id holds null
+    private Shape[] shapes = new Shape[16];
+    private double[] minX = new double[16];
+    private double[] minY = new double[16];
+    private double[] maxX = new double[16];
+    private double[] maxY = new double[16];
+    private int idCount;
+    private int size;
+    // Ids of removed shapes, for insert to hand out again
+    private int[] freeIds = new int[16];
+    private int freeCount;
+
+    private final double cellSize;
+    private final double inverseCellSize;
+
+    // Open-addressing hash table from a packed (column, row) to the ids in that cell
+    private long[] cellKeys = new long[64];
+    private Cell[] cells = new Cell[64];
+    private int cellCount;
+    // The shapes that cover too many cells to be listed in each of them
+    private final Cell oversized = new Cell(4);
+
+    // A range query marks each id it has looked at with the query number,
+    // so a shape that lies in several cells is reported once
+    private int[] seen = new int[16];
+    private int queryNumber;
+
+    // Reused result buffer of the queries
+    private int[] found = new int[16];
+
+    static final class Cell {
+        int[] ids;
+        int count;
+
+        Cell(int capacity) {
+            ids = new int[Math.max(capacity, 4)];
+        }
+
+        void add(int id) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = id;
+        }
+
+        // Order inside a cell does not matter, so the last id fills the gap
+        void remove(int id) {
+            for (int i = 0; i < count; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[--count];
+                    return;
+                }
+            }
+        }
+    }
+
+    ShapeGrid(double cellSize) {
+        if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+            throw new IllegalArgumentException("Cell size must be a positive number: " + cellSize);
+        }
+        this.cellSize = cellSize;
+        this.inverseCellSize = 1 / cellSize;
+    }
+
+    // Builds a grid for the given shapes in one go. Shape number i gets id i.
+    // The cell size is twice the average width or height of the boxes, and every
+    // cell array is allocated once at its final size.
+    static ShapeGrid bulkLoad(List<? extends Shape> list) {
+        int n = list.size();
+        Bounds[] boxes = new Bounds[n];
+        double extent = 0;
+        int counted = 0;
+        for (int i = 0; i < n; i++) {
+            Bounds box = list.get(i).bounds();
+            boxes[i] = box;
+            double size = Math.max(box.maxX - box.minX, box.maxY - box.minY);
+            if (!box.isEmpty() && Double.isFinite(size)) {
+                extent += size;
+                counted++;
+            }
+        }
+        double cellSize = counted == 0 || extent == 0 ? 1 : 2 * extent / counted;
+        ShapeGrid grid = new ShapeGrid(cellSize);
+        grid.ensureIdCapacity(n);
+
+        // First pass: count the ids of every cell
+        for (int i = 0; i < n; i++) {
+            Bounds box = boxes[i];
+            if (box.isEmpty() || grid.cellsCovered(box.minX, box.minY, box.maxX, box.maxY) > MAX_CELLS_PER_SHAPE) {
+                continue;
+            }
+            int column0 = grid.column(box.minX);
+            int column1 = grid.column(box.maxX);
+            int row0 = grid.column(box.minY);
+            int row1 = grid.column(box.maxY);
+            for (int column = column0; column <= column1; column++) {
+                for (int row = row0; row <= row1; row++) {
+                    grid.cell(column, row, true).count++;
+                }
+            }
+        }
+        // Allocate each cell once, then fill it
+        for (Cell cell : grid.cells) {
+            if (cell != null) {
+                cell.ids = new int[Math.max(cell.count, 4)];
+                cell.count = 0;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            grid.store(i, list.get(i), boxes[i]);
+            grid.addToCells(i);
+        }
+        grid.idCount = n;
+        grid.size = n;
+        return grid;
+    }
+
+    double cellSize() {
+        return cellSize;
+    }
+
+    // Number of shapes in the grid
+    int size() {
+        return size;
+    }
+
+    Shape get(int id) {
+        return id >= 0 && id < idCount ? shapes[id] : null;
+    }
+
+    // Adds a shape and returns its id, which may be the id of a removed shape
+    int insert(Shape shape) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = idCount++;
+            ensureIdCapacity(idCount);
+        }
+        store(id, shape, shape.bounds());
+        addToCells(id);
+        size++;
+        return id;
+    }
+
+    // Returns false if there is no shape with that id
+    boolean remove(int id) {
+        if (get(id) == null) {
+            return false;
+        }
+        removeFromCells(id);
+        shapes[id] = null;
+        size--;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+        return true;
+    }
+
+    // Replaces the shape with the given id, for example with a moved copy.
+    // When the new box covers the same cells, the cell lists are left alone.
+    boolean update(int id, Shape shape) {
+        if (get(id) == null) {
+            return false;
+        }
+        Bounds box = shape.bounds();
+        boolean sameCells = !box.isEmpty() && !isEmptyBox(id)
+                && column(box.minX) == column(minX[id]) && column(box.maxX) == column(maxX[id])
+                && column(box.minY) == column(minY[id]) && column(box.maxY) == column(maxY[id]);
+        if (sameCells) {
+            store(id, shape, box);
+            return true;
+        }
+        removeFromCells(id);
+        store(id, shape, box);
+        addToCells(id);
+        return true;
+    }
+
+    // ---- queries ----
+
+    // Ids of the shapes that contain the point. Only one cell has to be looked at.
+    int[] queryPoint(double x, double y) {
+        int count = 0;
+        Cell cell = cell(column(x), column(y), false);
+        if (cell != null) {
+            count = collectPoint(cell, x, y, count);
+        }
+        count = collectPoint(oversized, x, y, count);
+        return Arrays.copyOf(found, count);
+    }
+
+    // Ids of the shapes that overlap the box (touching edges count)
+    int[] queryRange(Bounds box) {
+        if (box.isEmpty()) {
+            return new int[0];
+        }
+        int query = nextQueryNumber();
+        int count = 0;
+        int column0 = column(box.minX);
+        int column1 = column(box.maxX);
+        int row0 = column(box.minY);
+        int row1 = column(box.maxY);
+        if (cellsCovered(box.minX, box.minY, box.maxX, box.maxY) > cellCount) {
+            // Fewer cells exist than the box covers: look at each of them once
+            for (int slot = 0; slot < cells.length; slot++) {
+                if (cells[slot] == null) {
+                    continue;
+                }
+                int column = (int) (cellKeys[slot] >>> 32);
+                int row = (int) cellKeys[slot];
+                if (column >= column0 && column <= column1 && row >= row0 && row <= row1) {
+                    count = collectRange(cells[slot], box, query, count);
+                }
+            }
+        } else {
+            for (int column = column0; column <= column1; column++) {
+                for (int row = row0; row <= row1; row++) {
+                    Cell cell = cell(column, row, false);
+                    if (cell != null) {
+                        count = collectRange(cell, box, query, count);
+                    }
+                }
+            }
+        }
+        count = collectRange(oversized, box, query, count);
+        return Arrays.copyOf(found, count);
+    }
+
+    // Adds the ids of the cell whose shape contains the point
+    private int collectPoint(Cell cell, double x, double y, int count) {
+        for (int i = 0; i < cell.count; i++) {
+            int id = cell.ids[i];
+            if (x >= minX[id] && x <= maxX[id] && y >= minY[id] && y <= maxY[id]
+                    && shapes[id].contains(x, y)) {
+                count = addFound(count, id);
+            }
+        }
+        return count;
+    }
+
+    // Adds the ids of the cell whose shape overlaps the box, skipping ids this query has seen
+    private int collectRange(Cell cell, Bounds box, int query, int count) {
+        for (int i = 0; i < cell.count; i++) {
+            int id = cell.ids[i];
+            if (seen[id] == query) {
+                continue;
+            }
+            seen[id] = query;
+            if (minX[id] <= box.maxX && box.minX <= maxX[id]
+                    && minY[id] <= box.maxY && box.minY <= maxY[id]
+                    && shapes[id].intersects(box)) {
+                count = addFound(count, id);
+            }
+        }
+        return count;
+    }
+
+    // Every pair of shapes whose bounding boxes overlap, as a flat array
+    // {a0, b0, a1, b1, ...} with a < b in each pair.
+    // One sweep over the whole plane would compare each box with every box that
+    // crosses the same vertical line, top to bottom. So the plane is cut into
+    // horizontal bands one cell high, and each band is swept on its own. A pair
+    // is reported only by the band that holds the bottom edge of its overlap.
+    int[] collisionPairs() {
+        double bottom = Double.POSITIVE_INFINITY;
+        double top = Double.NEGATIVE_INFINITY;
+        int n = 0;
+        for (int id = 0; id < idCount; id++) {
+            if (shapes[id] != null && !isEmptyBox(id)) {
+                bottom = Math.min(bottom, minY[id]);
+                top = Math.max(top, maxY[id]);
+                n++;
+            }
+        }
+        if (n < 2) {
+            return new int[0];
+        }
+        // Never more bands than boxes
+        double bandHeight = Math.max(cellSize, (top - bottom) / n);
+        int bands = band(top, bottom, bandHeight, Integer.MAX_VALUE) + 1;
+
+        // Group the boxes by band (counting sort); a box goes into every band it covers
+        int[] start = new int[bands + 1];
+        for (int id = 0; id < idCount; id++) {
+            if (shapes[id] != null && !isEmptyBox(id)) {
+                int last = band(maxY[id], bottom, bandHeight, bands);
+                for (int b = band(minY[id], bottom, bandHeight, bands); b <= last; b++) {
+                    start[b + 1]++;
+                }
+            }
+        }
+        for (int b = 0; b < bands; b++) {
+            start[b + 1] += start[b];
+        }
+        // One long per entry: the left edge as a float in the high half, the id in
+        // the low half, so a primitive sort orders a band by left edge.
+        // The float is rounded down, so it is never right of the real edge.
+        long[] order = new long[start[bands]];
+        int[] next = Arrays.copyOf(start, bands);
+        for (int id = 0; id < idCount; id++) {
+            if (shapes[id] != null && !isEmptyBox(id)) {
+                long entry = ((long) sortableBits(floatBelow(minX[id])) << 32) | id;
+                int last = band(maxY[id], bottom, bandHeight, bands);
+                for (int b = band(minY[id], bottom, bandHeight, bands); b <= last; b++) {
+                    order[next[b]++] = entry;
+                }
+            }
+        }
+
+        int[] active = new int[16];
+        int[] pairs = new int[16];
+        int pairCount = 0;
+        for (int b = 0; b < bands; b++) {
+            Arrays.sort(order, start[b], start[b + 1]);
+            int activeCount = 0;
+            for (int k = start[b]; k < start[b + 1]; k++) {
+                int id = (int) order[k];
+                // Later boxes start at or after this edge, so a box that ended
+                // before it cannot touch any of them
+                float left = floatBelow(minX[id]);
+                int kept = 0;
+                for (int j = 0; j < activeCount; j++) {
+                    int other = active[j];
+                    if (maxX[other] < left) {
+                        continue;
+                    }
+                    active[kept++] = other;
+                    if (minX[other] <= maxX[id] && minX[id] <= maxX[other]
+                            && minY[other] <= maxY[id] && minY[id] <= maxY[other]
+                            && band(Math.max(minY[id], minY[other]), bottom, bandHeight, bands) == b) {
+                        if (pairCount + 2 > pairs.length) {
+                            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                        }
+                        pairs[pairCount++] = Math.min(id, other);
+                        pairs[pairCount++] = Math.max(id, other);
+                    }
+                }
+                activeCount = kept;
+                if (activeCount == active.length) {
+                    active = Arrays.copyOf(active, activeCount * 2);
+                }
+                active[activeCount++] = id;
+            }
+        }
+        return Arrays.copyOf(pairs, pairCount);
+    }
+
+    // ---- helpers ----
+
+    // The column (or row) of the cell that contains the coordinate, clamped to +-MAX_CELL
+    private int column(double coordinate) {
+        double cell = Math.floor(coordinate * inverseCellSize);
+        return (int) Math.max(-MAX_CELL, Math.min(MAX_CELL, cell));
+    }
+
+    // How many cells the box covers
+    private long cellsCovered(double x0, double y0, double x1, double y1) {
+        return (column(x1) - (long) column(x0) + 1) * (column(y1) - (long) column(y0) + 1);
+    }
+
+    private boolean isOversized(int id) {
+        return cellsCovered(minX[id], minY[id], maxX[id], maxY[id]) > MAX_CELLS_PER_SHAPE;
+    }
+
+    // The band of collisionPairs() that contains y, at most bands - 1
+    private static int band(double y, double bottom, double bandHeight, int bands) {
+        return (int) Math.min((y - bottom) / bandHeight, bands - 1);
+    }
+
+    private boolean isEmptyBox(int id) {
+        return minX[id] > maxX[id] || minY[id] > maxY[id];
+    }
+
+    private void store(int id, Shape shape, Bounds box) {
+        shapes[id] = shape;
+        minX[id] = box.minX;
+        minY[id] = box.minY;
+        maxX[id] = box.maxX;
+        maxY[id] = box.maxY;
+    }
+
+    // A shape without a box (a plain Shape) is kept, but is in no cell
+    private void addToCells(int id) {
+        if (isEmptyBox(id)) {
+            return;
+        }
+        if (isOversized(id)) {
+            oversized.add(id);
+            return;
+        }
+        int column1 = column(maxX[id]);
+        int row0 = column(minY[id]);
+        int row1 = column(maxY[id]);
+        for (int column = column(minX[id]); column <= column1; column++) {
+            for (int row = row0; row <= row1; row++) {
+                cell(column, row, true).add(id);
+            }
+        }
+    }
+
+    // Emptied cells stay in the table; they are reused when a shape comes back
+    private void removeFromCells(int id) {
+        if (isEmptyBox(id)) {
+            return;
+        }
+        if (isOversized(id)) {
+            oversized.remove(id);
+            return;
+        }
+        int column1 = column(maxX[id]);
+        int row0 = column(minY[id]);
+        int row1 = column(maxY[id]);
+        for (int column = column(minX[id]); column <= column1; column++) {
+            for (int row = row0; row <= row1; row++) {
+                cell(column, row, false).remove(id);
+            }
+        }
+    }
+
+    // Looks a cell up, creating it when create is true; otherwise null if missing
+    private Cell cell(int column, int row, boolean create) {
+        long key = ((long) column << 32) | (row & 0xffffffffL);
+        int mask = cellKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (cells[slot] != null) {
+            if (cellKeys[slot] == key) {
+                return cells[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!create) {
+            return null;
+        }
+        Cell cell = new Cell(4);
+        cellKeys[slot] = key;
+        cells[slot] = cell;
+        if (++cellCount * 2 > cellKeys.length) {
+            growCells();
+        }
+        return cell;
+    }
+
+    private void growCells() {
+        long[] oldKeys = cellKeys;
+        Cell[] oldCells = cells;
+        cellKeys = new long[oldKeys.length * 2];
+        cells = new Cell[oldCells.length * 2];
+        int mask = cellKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCells[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (cells[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                cellKeys[slot] = oldKeys[i];
+                cells[slot] = oldCells[i];
+            }
+        }
+    }
+
+    // Mixes the bits, so neighbouring cells do not land in neighbouring slots
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private void ensureIdCapacity(int capacity) {
+        if (capacity <= shapes.length) {
+            return;
+        }
+        int grown = Math.max(capacity, shapes.length * 2);
+        shapes = Arrays.copyOf(shapes, grown);
+        minX = Arrays.copyOf(minX, grown);
+        minY = Arrays.copyOf(minY, grown);
+        maxX = Arrays.copyOf(maxX, grown);
+        maxY = Arrays.copyOf(maxY, grown);
+        seen = Arrays.copyOf(seen, grown);
+    }
+
+    private int nextQueryNumber() {
+        if (++queryNumber == 0) {
+            // After 2^32 queries the numbers wrap around; start clean
+            Arrays.fill(seen, 0);
+            queryNumber = 1;
+        }
+        return queryNumber;
+    }
+
+    private int addFound(int count, int id) {
+        if (count == found.length) {
+            found = Arrays.copyOf(found, count * 2);
+        }
+        found[count] = id;
+        return count + 1;
+    }
+
+    private static float floatBelow(double value) {
+        float f = (float) value;
+        return f > value ? Math.nextDown(f) : f;
+    }
+
+    // Float bits turned into an int that sorts in the same order as the floats
+    private static int sortableBits(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+}
+
+public class SpatialIndexDemo {
+    // Scattered shapes, about one per 100 x 100 square, most a few units across
+    static Shape[] randomShapes(int n, Random random) {
+        double side = Math.sqrt(n) * 100;
+        Shape[] shapes = new Shape[n];
+        for (int i = 0; i < n; i++) {
+            shapes[i] = randomShape(random, side);
+        }
+        return shapes;
+    }
+
+    static Shape randomShape(Random random, double side) {
+        double x = random.nextDouble() * side;
+        double y = random.nextDouble() * side;
+        return random.nextBoolean()
+                ? new Circle(x, y, 1 + random.nextDouble() * 20)
+                : new Rectangle(x, y, 1 + random.nextDouble() * 40, 1 + random.nextDouble() * 40);
+    }
+
+    // What we had before: ask every shape
+    static int scanPoint(Shape[] shapes, double x, double y) {
+        int count = 0;
+        for (Shape shape : shapes) {
+            if (shape.contains(x, y)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static int scanRange(Shape[] shapes, Bounds box) {
+        int count = 0;
+        for (Shape shape : shapes) {
+            if (shape.intersects(box)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(23);
+
+        // A small check against the plain scan, with inserts, moves and removes
+        Shape[] shapes = randomShapes(2000, random);
+        ShapeGrid grid = ShapeGrid.bulkLoad(Arrays.asList(shapes));
+        for (int i = 0; i < 500; i++) {
+            int id = random.nextInt(shapes.length);
+            shapes[id] = randomShape(random, 4500);
+            grid.update(id, shapes[id]);
+        }
+        int extra = grid.insert(new Circle(50, 50, 30));
+        grid.remove(extra);
+        // Inserting and removing over and over reuses the same ids
+        int highestId = 0;
+        for (int i = 0; i < 10_000; i++) {
+            int id = grid.insert(randomShape(random, 4500));
+            highestId = Math.max(highestId, id);
+            grid.remove(id);
+        }
+        boolean same = true;
+        for (int i = 0; i < 1000; i++) {
+            double x = random.nextDouble() * 4500;
+            double y = random.nextDouble() * 4500;
+            Bounds box = new Bounds(x, y, x + random.nextDouble() * 200, y + random.nextDouble() * 200);
+            same &= grid.queryPoint(x, y).length == scanPoint(shapes, x, y);
+            same &= grid.queryRange(box).length == scanRange(shapes, box);
+        }
+        // The pairs themselves, not just how many: a missed pair and a
+        // duplicate would give the right count
+        long[] expected = new long[16];
+        int expectedCount = 0;
+        for (int a = 0; a < shapes.length; a++) {
+            for (int b = a + 1; b < shapes.length; b++) {
+                if (shapes[a].bounds().overlaps(shapes[b].bounds())) {
+                    if (expectedCount == expected.length) {
+                        expected = Arrays.copyOf(expected, expectedCount * 2);
+                    }
+                    expected[expectedCount++] = pairKey(a, b);
+                }
+            }
+        }
+        int[] pairs = grid.collisionPairs();
+        long[] actual = new long[pairs.length / 2];
+        for (int i = 0; i < actual.length; i++) {
+            actual[i] = pairKey(pairs[2 * i], pairs[2 * i + 1]);
+        }
+        Arrays.sort(actual);
+        boolean samePairs = Arrays.equals(actual, Arrays.copyOf(expected, expectedCount));
+        System.out.println("Grid answers match a full scan: " + same);
+        System.out.println("Overlapping pairs: " + actual.length + ", the same pairs as checking all pairs: "
+                + samePairs);
+        System.out.println("Highest id after 10,000 inserts and removes: " + highestId);
+
+        // Query time as the number of shapes grows; the density stays the same,
+        // so the grid's answer takes about as long while the scan keeps growing
+        MicroBench.warmupRuns = 3;
+        MicroBench.measuredRuns = 5;
+        System.out.printf("%-10s %14s %14s %14s %14s %12s%n",
+                "shapes", "grid point", "scan point", "grid range", "scan range", "pairs");
+        for (int n : new int[] {10_000, 100_000, 1_000_000}) {
+            Shape[] many = randomShapes(n, random);
+            double side = Math.sqrt(n) * 100;
+            ShapeGrid index = ShapeGrid.bulkLoad(Arrays.asList(many));
+            int queries = 10_000;
+            double[] xs = new double[queries];
+            double[] ys = new double[queries];
+            for (int i = 0; i < queries; i++) {
+                xs[i] = random.nextDouble() * side;
+                ys[i] = random.nextDouble() * side;
+            }
+            int scans = Math.max(10, 10_000_000 / n); // the scan is much slower; run fewer
+
+            double gridPoint = perQuery(MicroBench.bestNanos(() -> {
+                long found = 0;
+                for (int i = 0; i < queries; i++) {
+                    found += index.queryPoint(xs[i], ys[i]).length;
+                }
+                return found;
+            }), queries);
+            double scanPoint = perQuery(MicroBench.bestNanos(() -> {
+                long found = 0;
+                for (int i = 0; i < scans; i++) {
+                    found += scanPoint(many, xs[i], ys[i]);
+                }
+                return found;
+            }), scans);
+            double gridRange = perQuery(MicroBench.bestNanos(() -> {
+                long found = 0;
+                for (int i = 0; i < queries; i++) {
+                    found += index.queryRange(new Bounds(xs[i], ys[i], xs[i] + 200, ys[i] + 200)).length;
+                }
+                return found;
+            }), queries);
+            double scanRange = perQuery(MicroBench.bestNanos(() -> {
+                long found = 0;
+                for (int i = 0; i < scans; i++) {
+                    found += scanRange(many, new Bounds(xs[i], ys[i], xs[i] + 200, ys[i] + 200));
+                }
+                return found;
+            }), scans);
+            long start = System.nanoTime();
+            int pairCount = index.collisionPairs().length / 2;
+            double pairMillis = (System.nanoTime() - start) / 1e6;
+
+            System.out.printf("%-10d %11.2f us %11.2f us %11.2f us %11.2f us %9.1f ms   (%d pairs)%n",
+                    n, gridPoint, scanPoint, gridRange, scanRange, pairMillis, pairCount);
+        }
+    }
+
+    // One pair as a number that sorts by the first id, then the second
+    static long pairKey(int a, int b) {
+        return ((long) a << 32) | b;
+    }
+
+    // Microseconds per query
+    static double perQuery(long nanos, int queries) {
+        return nanos / 1000.0 / queries;
+    }
+}
@@ -161,9 +161,9 @@ class Library {
         if (totalBooks > 0) {
             totalBooks--;
             borrowedBooks++;
-            System.out.println("Book borrowed! Remaining books: " + totalBooks);
+            RingLog.log("Book borrowed! Remaining books: {}", totalBooks);
         } else {
-            System.out.println("No books left to borrow.");
+            RingLog.log("No books left to borrow.");
         }
     }
 }
@@ -191,6 +191,8 @@ public class StaticMethodExample3 {
 
 ### **Output**
 
+The "Book borrowed!" lines go through `RingLog` (ringlog.java), which is off by default; they appear when the program runs with `-Dringlog=sync` or `-Dringlog=async`.
+
 ```
 Total Books in Library: 100
 Book borrowed! Remaining books: 99
@@ -0,0 +1,128 @@
+/* A streaming alternative to Calculator.add(int[]) (methodoverloading.java).
+
+   add(int[]) needs the whole array before it can start. A StreamingAccumulator
+   takes the numbers a few at a time, as they arrive, and keeps a running count,
+   sum, minimum and maximum. Each number costs a few additions and comparisons,
+   and the memory used never grows, however many numbers are added.
+   snapshot() can be called at any time and does not look at old numbers again.
+
+   One accumulator should be fed by one thread at a time.
+
+   Compile together with sumstats.java. */
+
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+class StreamingAccumulator {
+    private long count;
+    private long sum;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    // Adds a single value
+    public void accept(int value) {
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    // Adds a whole array
+    public void accept(int[] values) {
+        accept(values, 0, values.length);
+    }
+
+    // Adds values[offset] .. values[offset + length - 1]
+    public void accept(int[] values, int offset, int length) {
+        java.util.Objects.checkFromIndexSize(offset, length, values.length);
+        long s = sum;
+        int lo = min;
+        int hi = max;
+        for (int i = offset; i < offset + length; i++) {
+            int value = values[i];
+            s += value;
+            lo = Math.min(lo, value);
+            hi = Math.max(hi, value);
+        }
+        sum = s;
+        min = lo;
+        max = hi;
+        count += length;
+    }
+
+    // Adds every value of the stream (a parallel stream is consumed sequentially)
+    public void accept(IntStream values) {
+        values.sequential().forEach(this::accept);
+    }
+
+    // Adds the ints between the buffer's position and limit, in the buffer's
+    // byte order. The position moves past the values that were read; if fewer
+    // than 4 bytes are left at the end they stay in the buffer for the next chunk.
+    public void accept(ByteBuffer buffer) {
+        int position = buffer.position();
+        int end = position + (buffer.remaining() & ~(Integer.BYTES - 1));
+        long s = sum;
+        int lo = min;
+        int hi = max;
+        for (int i = position; i < end; i += Integer.BYTES) {
+            int value = buffer.getInt(i);
+            s += value;
+            lo = Math.min(lo, value);
+            hi = Math.max(hi, value);
+        }
+        sum = s;
+        min = lo;
+        max = hi;
+        count += (end - position) / Integer.BYTES;
+        buffer.position(end);
+    }
+
+    // The totals so far
+    public SumStats snapshot() {
+        return count == 0 ? SumStats.EMPTY : new SumStats(count, sum, min, max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    // Starts again from nothing
+    public void reset() {
+        count = 0;
+        sum = 0;
+        min = Integer.MAX_VALUE;
+        max = Integer.MIN_VALUE;
+    }
+}
+
+public class StreamingDemo {
+    public static void main(String[] args) {
+        StreamingAccumulator totals = new StreamingAccumulator();
+
+        // Single values
+        totals.accept(5);
+        totals.accept(10);
+        System.out.println("After 5 and 10: " + totals.snapshot());
+
+        // Part of an array: {2, 3, 4}
+        int[] numbers = {1, 2, 3, 4, 5};
+        totals.accept(numbers, 1, 3);
+        System.out.println("After {2, 3, 4}: " + totals.snapshot());
+
+        // A stream
+        totals.accept(IntStream.rangeClosed(1, 100));
+        System.out.println("After 1..100: " + totals.snapshot());
+
+        // Raw bytes, as they might come from a file or a socket
+        ByteBuffer chunk = ByteBuffer.allocate(10);
+        chunk.putInt(-7).putInt(1000).put((byte) 1).put((byte) 2);
+        chunk.flip();
+        totals.accept(chunk);
+        System.out.println("After {-7, 1000}: " + totals.snapshot()
+                + " (" + chunk.remaining() + " bytes left over)");
+    }
+}
@@ -0,0 +1,41 @@
+/* A small immutable summary of a run of whole numbers: how many there were,
+   their sum, and the smallest and largest value.
+   Used by the file reducer (mappedsum.java) and the streaming accumulator. */
+
+class SumStats {
+    static final SumStats EMPTY = new SumStats(0, 0, Long.MAX_VALUE, Long.MIN_VALUE);
+
+    final long count;
+    final long sum;
+    final long min;
+    final long max;
+
+    SumStats(long count, long sum, long min, long max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    double average() {
+        return count == 0 ? 0.0 : (double) sum / count;
+    }
+
+    // Combines the summaries of two separate runs of numbers
+    SumStats merge(SumStats other) {
+        return new SumStats(count + other.count, sum + other.sum,
+                Math.min(min, other.min), Math.max(max, other.max));
+    }
+
+    @Override
+    public String toString() {
+        if (isEmpty()) {
+            return "count=0";
+        }
+        return "count=" + count + ", sum=" + sum + ", min=" + min + ", max=" + max;
+    }
+}
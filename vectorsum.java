@@ -0,0 +1,158 @@
+/* Vectorized (SIMD) array sums for the Calculator in methodoverloading.java.
+
+   The Vector API (jdk.incubator.vector) lets Java code use the CPU's vector
+   registers directly: one instruction adds 4, 8 or 16 numbers at the same time.
+   The number of values in one register is called the number of "lanes", and the
+   register size is called the "shape" (64, 128, 256 or 512 bits).
+
+   Compile and run with the incubator module enabled, together with
+   methodoverloading.java (which needs batchkernels.java, parallelsum.java,
+   pairwisesum.java and sumstats.java) and microbench.java:
+       javac --add-modules jdk.incubator.vector -d out vectorsum.java methodoverloading.java \
+             batchkernels.java parallelsum.java pairwisesum.java sumstats.java microbench.java
+       java --add-modules jdk.incubator.vector -cp out VectorSumBenchmark
+   javac wants a public class in a file of the same name, so drop "public"
+   from the demo classes of these files first (or copy them to files named
+   after their demo class).
+
+   Without the module the Calculator never touches this class and keeps
+   using its plain loops. */
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+class VectorizedSum {
+    // The widest vectors this CPU supports (can be lowered with -XX:MaxVectorSize).
+    // The species must be constants (static final fields) used directly in the
+    // loops: only then does the JIT turn the vector code into SIMD instructions.
+    static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    static final VectorSpecies<Long> WIDE_INTS =
+            VectorSpecies.of(long.class, INTS.vectorShape());
+    static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+    // Ints are widened to longs before they are added, so the total never overflows.
+    // One int vector holds twice as many lanes as a long vector of the same shape,
+    // so it is split into two halves (part 0 and part 1).
+    static long sum(int[] numbers) {
+        LongVector acc = LongVector.zero(WIDE_INTS);
+        int i = 0;
+        int upperBound = INTS.loopBound(numbers.length);
+        for (; i < upperBound; i += INTS.length()) {
+            IntVector v = IntVector.fromArray(INTS, numbers, i);
+            acc = acc.add((LongVector) v.convertShape(VectorOperators.I2L, WIDE_INTS, 0))
+                     .add((LongVector) v.convertShape(VectorOperators.I2L, WIDE_INTS, 1));
+        }
+        long sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < numbers.length; i++) {
+            sum += numbers[i];
+        }
+        return sum;
+    }
+
+    // Long addition wraps around exactly like the scalar loop, whatever the order
+    static long sum(long[] numbers) {
+        LongVector acc = LongVector.zero(LONGS);
+        int i = 0;
+        int upperBound = LONGS.loopBound(numbers.length);
+        for (; i < upperBound; i += LONGS.length()) {
+            acc = acc.add(LongVector.fromArray(LONGS, numbers, i));
+        }
+        long sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < numbers.length; i++) {
+            sum += numbers[i];
+        }
+        return sum;
+    }
+
+    // Each lane keeps its own running total, so the additions happen in a
+    // different order than in the scalar loop and the rounding can differ slightly
+    static double sum(double[] numbers) {
+        DoubleVector acc = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        int upperBound = DOUBLES.loopBound(numbers.length);
+        for (; i < upperBound; i += DOUBLES.length()) {
+            acc = acc.add(DoubleVector.fromArray(DOUBLES, numbers, i));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < numbers.length; i++) {
+            sum += numbers[i];
+        }
+        return sum;
+    }
+}
+
+/* Compares the scalar loops with the vector loops for every lane width.
+
+   The lane width is fixed when the JVM starts, so without arguments this
+   program starts one child JVM per vector size (-XX:MaxVectorSize=16, 32, 64
+   bytes, up to what the CPU supports) and each child prints its own table:
+       java --add-modules jdk.incubator.vector VectorSumBenchmark
+   A single run with the default vector size:
+       java --add-modules jdk.incubator.vector VectorSumBenchmark run 1048576 */
+public class VectorSumBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("run")) {
+            run(args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20);
+            return;
+        }
+        int maxBytes = VectorShape.preferredShape().vectorBitSize() / 8;
+        String java = ProcessHandle.current().info().command().orElse("java");
+        for (int bytes = 16; bytes <= maxBytes; bytes *= 2) {
+            Process child = new ProcessBuilder(java,
+                    "--add-modules", "jdk.incubator.vector",
+                    "-XX:MaxVectorSize=" + bytes,
+                    "-cp", System.getProperty("java.class.path"),
+                    "VectorSumBenchmark", "run", args.length > 0 ? args[0] : String.valueOf(1 << 20))
+                    .redirectErrorStream(true)
+                    .start();
+            try (java.io.BufferedReader out = new java.io.BufferedReader(
+                    new java.io.InputStreamReader(child.getInputStream()))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    if (!line.startsWith("WARNING")) {
+                        System.out.println(line);
+                    }
+                }
+            }
+            child.waitFor();
+        }
+    }
+
+    static void run(int size) {
+        java.util.Random random = new java.util.Random(42);
+        int[] ints = new int[size];
+        long[] longs = new long[size];
+        double[] doubles = new double[size];
+        for (int i = 0; i < size; i++) {
+            ints[i] = random.nextInt();
+            longs[i] = random.nextLong();
+            doubles[i] = random.nextDouble();
+        }
+
+        // Enough calls for the JIT to compile the vector loops as whole methods
+        MicroBench.warmupRuns = 200;
+        MicroBench.measuredRuns = 50;
+
+        System.out.println("Vector size " + VectorizedSum.INTS.vectorBitSize()
+                + " bits, " + size + " elements");
+        long scalar = MicroBench.bestNanos(() -> Calculator.scalarSum(ints));
+        long vector = MicroBench.bestNanos(() -> VectorizedSum.sum(ints));
+        MicroBench.report("int scalar loop", scalar, scalar);
+        MicroBench.report("int x " + VectorizedSum.INTS.length() + " lanes", vector, scalar);
+
+        scalar = MicroBench.bestNanos(() -> Calculator.scalarSum(longs));
+        vector = MicroBench.bestNanos(() -> VectorizedSum.sum(longs));
+        MicroBench.report("long scalar loop", scalar, scalar);
+        MicroBench.report("long x " + VectorizedSum.LONGS.length() + " lanes", vector, scalar);
+
+        scalar = MicroBench.bestNanos(() -> Calculator.scalarSum(doubles));
+        vector = MicroBench.bestNanos(() -> VectorizedSum.sum(doubles));
+        MicroBench.report("double scalar loop", scalar, scalar);
+        MicroBench.report("double x " + VectorizedSum.DOUBLES.length() + " lanes", vector, scalar);
+    }
+}